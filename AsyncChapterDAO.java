@@ -0,0 +1,222 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import com.mongodb.DBObject;
+
+/**
+ * Async Chapter DAO
+ *
+ * The ChapterDAO reads and join changes as CompletableFutures, so a request can start several of them at once
+ * and put the results together when they are all done, e.g. with CompletableFuture.allOf.
+ *
+ * The driver we use only blocks, so every call runs a blocking ChapterDAO call on the executor.
+ * The default executor is a pool of daemon threads the size of the MongoConnectionManager pool, or 32 threads when that isn't configured.
+ * At most that many calls wait on mongo at once, the rest wait for a thread instead of for a connection.
+ *
+ * @note This needs Java 8 for CompletableFuture, which is the JDK the chapter DAOs target.
+ *
+ * Every call gets its own ChapterDAO, with the settings of the one this was made with.
+ * Exceptions from the DAO (NotFoundException, InternalErrorException) complete the future exceptionally.
+ */
+public class AsyncChapterDAO {
+
+	//Threads in the default pool when the connection manager isn't configured
+	private static final int defaultPoolSize = 32;
+
+	private static Executor defaultExecutor = null;
+
+	private final ChapterDAO settings;
+	private final Executor executor;
+
+	public AsyncChapterDAO(){
+		this(new ChapterDAO());
+	}
+
+	/**
+	 * @param settings The DAO whose settings every call uses
+	 */
+	public AsyncChapterDAO(ChapterDAO settings){
+		this(settings, getDefaultExecutor());
+	}
+
+	/**
+	 * @param settings The DAO whose settings every call uses
+	 * @param executor What to run the calls on
+	 */
+	public AsyncChapterDAO(ChapterDAO settings, Executor executor){
+		this.settings = settings;
+		this.executor = executor;
+	}
+
+	//
+	// Reads
+	//
+
+	/**
+	 * See ChapterDAO.getChapter
+	 */
+	public CompletableFuture<DBObject> getChapter(final String chapterId){
+		return CompletableFuture.supplyAsync(new Supplier<DBObject>(){
+			public DBObject get(){
+				return newDAO().getChapter(chapterId);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.getContentForAChapter
+	 */
+	public CompletableFuture<ArrayList<Map>> getContentForAChapter(final String chapterId, final int start, final int count, final Boolean isAdmin){
+		return CompletableFuture.supplyAsync(new Supplier<ArrayList<Map>>(){
+			public ArrayList<Map> get(){
+				return newDAO().getContentForAChapter(chapterId, start, count, isAdmin);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.getContentForAChapter
+	 */
+	public CompletableFuture<ArrayList<Map>> getContentForAChapter(final String chapterId, final int start, final int count, final Boolean isAdmin, final boolean listing){
+		return CompletableFuture.supplyAsync(new Supplier<ArrayList<Map>>(){
+			public ArrayList<Map> get(){
+				return newDAO().getContentForAChapter(chapterId, start, count, isAdmin, listing);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.getAllChaptersForContent
+	 */
+	public CompletableFuture<ArrayList<DBObject>> getAllChaptersForContent(final String scopeId, final String scope){
+		return CompletableFuture.supplyAsync(new Supplier<ArrayList<DBObject>>(){
+			public ArrayList<DBObject> get(){
+				return newDAO().getAllChaptersForContent(scopeId, scope);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.getParentChapterForChapter
+	 */
+	public CompletableFuture<DBObject> getParentChapterForChapter(final String chapterId){
+		return CompletableFuture.supplyAsync(new Supplier<DBObject>(){
+			public DBObject get(){
+				return newDAO().getParentChapterForChapter(chapterId);
+			}
+		}, executor);
+	}
+
+	//
+	// Join changes
+	//
+
+	/**
+	 * See ChapterDAO.addContentToChapter
+	 */
+	public CompletableFuture<Boolean> addContentToChapter(final String chapterId, final String scopeId, final String scope, final String joinType, final String featured, final String hide, final String isLCP, final String lcpedFrom){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().addContentToChapter(chapterId, scopeId, scope, joinType, featured, hide, isLCP, lcpedFrom);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.addContentToChapter
+	 */
+	public CompletableFuture<ArrayList<ChapterJoin.Outcome>> addContentToChapter(final String chapterId, final List<ChapterJoin> joins){
+		return CompletableFuture.supplyAsync(new Supplier<ArrayList<ChapterJoin.Outcome>>(){
+			public ArrayList<ChapterJoin.Outcome> get(){
+				return newDAO().addContentToChapter(chapterId, joins);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.removeContentFromChapter
+	 */
+	public CompletableFuture<Boolean> removeContentFromChapter(final String chapterId, final String scopeId, final String scope){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().removeContentFromChapter(chapterId, scopeId, scope);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.changeJoinOrder
+	 */
+	public CompletableFuture<Boolean> changeJoinOrder(final String chapterId, final ArrayList<Map> chaptersList){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().changeJoinOrder(chapterId, chaptersList);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.moveJoin
+	 */
+	public CompletableFuture<Boolean> moveJoin(final String chapterId, final String scopeId, final int toIndex){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().moveJoin(chapterId, scopeId, toIndex);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.removeAllChapters
+	 */
+	public CompletableFuture<Boolean> removeAllChapters(final String scopeId, final String scope){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().removeAllChapters(scopeId, scope);
+			}
+		}, executor);
+	}
+
+	/**
+	 * See ChapterDAO.deleteChapter
+	 */
+	public CompletableFuture<Boolean> deleteChapter(final String chapterId){
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>(){
+			public Boolean get(){
+				return newDAO().deleteChapter(chapterId);
+			}
+		}, executor);
+	}
+
+	public Executor getExecutor(){
+		return this.executor;
+	}
+
+	private ChapterDAO newDAO(){
+		return settings.copySettings();
+	}
+
+	//Made the first time it is needed so it can be sized to the connection pool once that is configured
+	static synchronized Executor getDefaultExecutor(){
+		if(defaultExecutor == null){
+			MongoConnectionManager manager = MongoConnectionManager.getInstance();
+			int size = manager.isConfigured() ? manager.getPoolSize() : defaultPoolSize;
+			defaultExecutor = Executors.newFixedThreadPool(Math.max(size, 1), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "chapter-async");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+}
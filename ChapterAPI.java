@@ -2,13 +2,14 @@ package net.javs.dao.chapters;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
-import net.javs.dao.DAO;
 import net.javs.exceptions.InternalErrorException;
 import net.javs.exceptions.NotFoundException;
 
@@ -16,6 +17,9 @@ import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -77,7 +81,7 @@ import com.mongodb.DBObject;
  * 		   "LCP" related fields are used when content or chaptered is published somewhere other than the original book
  */
 
-public class Chapter extends DAO {
+public class Chapter extends PooledDAO {
 	
 	private String id;
 	private String name;
@@ -98,6 +102,8 @@ public class Chapter extends DAO {
 	private String slideShowId;
 	private Date lastUpdatedTime;
 	
+	//The mongo fields that were set since the last save, and what they were set to
+	private LinkedHashMap<String, String> changes = new LinkedHashMap<String, String>();
 	
 	public Chapter(){
 		this.id = "0";
@@ -124,8 +130,9 @@ public class Chapter extends DAO {
 	 * This save will create a new chapter if no id is set<br \>
 	 * if an id is set it will update the chapter matching that Id <br \><br \>
 	 * 
-	 * Only updates fields with values<br \>
-	 * If you do not want to update a field, Leave it as null<br \>
+	 * Only updates the fields whose setters were called since the last save<br \>
+	 * If you do not want to update a field, don't set it or leave it as null<br \>
+	 * An empty string removes the field<br \>
 	 */
 	@Override
 	public boolean save() {
@@ -133,165 +140,231 @@ public class Chapter extends DAO {
 			this.initMongo();		
 			BasicDBObject doc = new BasicDBObject();
 			BasicDBObject removeFields = new BasicDBObject();
+			getChanges(doc, removeFields);
 			
-			//We only want to add or update fields that are being passed.
-			//All fields that are left null are not updated or touched
-			if(name != null){
-				doc.append("name", name);
-			}
+			DBCollection coll = db.getCollection("chapters");
 			
-			if(description != null){
-				if(!description.equals("")){
-					doc.append("description", description);
-				}else{
-					removeFields.append("description", 1);
+			//Only update fields with values
+			if(!isNew()){
+				ObjectId found = LegacyIdResolver.getInstance().resolve(db, "chapters", id);
+				if(found == null){
+					return false;
 				}
-			}
-			
-			if(abs != null){
-				if(!abs.equals("")){
-					doc.append("abstract", abs);
-				}else{
-					removeFields.append("abstract", 1);
+				BasicDBObject q = new BasicDBObject("_id", found);
+				coll.update(q, getUpdate(doc, removeFields));
+				ChapterCache.getInstance().invalidate(found.toString());
+				ChapterCache.getInstance().invalidate(id);
+				LegacyIdResolver.getInstance().invalidate("chapters", id);
+				if(hasSummaryChanges()){
+					JoinSummaryMaintainer.refreshChapter(db, found);
 				}
+			}else{
+				coll.insert(doc);
+				id = doc.get("_id").toString();
 			}
 			
-			if(galleryId != null){
-				if(!galleryId.equals("")){
-					doc.append("galleryId", galleryId);
-				}else{
-					removeFields.append("galleryId", 1);
-				}
-			}
+			changes.clear();
+			return true;
+		}catch(Exception e){
 			
-			if(shortName != null){
-				if(!shortName.equals("")){
-					doc.append("shortName", shortName);
-				}else{
-					removeFields.append("shortName", 1);
-				}
+		}finally{
+			this.deInitMongo();
+		}
+		return false;
+	}
+	
+	/**
+	 * Saves many chapters at once
+	 * 
+	 * New chapters are inserted and the rest are updated with one unordered bulk write,
+	 * and all the legacy ids are resolved with one query.
+	 * Like save, only the fields that were set since the last save are written.
+	 * 
+	 * New chapters are keyed on the id they are given before the write, even when they weren't saved,
+	 * so every chapter has its own entry, in the same order as the chapters.
+	 * If the write concern failed nothing is reported as saved. The new chapters still get their id then,
+	 * so saving them again updates them instead of inserting them twice.
+	 * 
+	 * @param chapters
+	 * @return Whether each chapter was saved, keyed on its id (new chapters get their new id)
+	 * @throws InternalErrorException if the same chapter is in the list more than once, nothing is written then
+	 */
+	public static LinkedHashMap<String, Boolean> saveAll(Collection<Chapter> chapters){
+		LinkedHashMap<String, Boolean> ret = new LinkedHashMap<String, Boolean>();
+		if(chapters.isEmpty()){
+			return ret;
+		}
+		
+		//The same chapter twice would write over its own result, or insert a new chapter twice
+		HashSet<Chapter> seen = new HashSet<Chapter>();
+		HashSet<String> seenIds = new HashSet<String>();
+		for(Chapter chapter : chapters){
+			if(!seen.add(chapter) || (!chapter.isNew() && !seenIds.add(chapter.id))){
+				throw(new InternalErrorException("A chapter can only be saved once in a list."));
 			}
-			
-			if(imageId != null){
-				if(!imageId.equals("")){
-					doc.append("imageId", imageId);
-				}else{
-					removeFields.append("imageId", 1);
-				}
+		}
+		
+		//Make the ids for the new chapters ourselves so we know them before the write, and can report on them even if it fails
+		HashMap<Chapter, ObjectId> newIds = new HashMap<Chapter, ObjectId>();
+		for(Chapter chapter : chapters){
+			if(chapter.isNew()){
+				newIds.put(chapter, new ObjectId());
 			}
+		}
+		
+		Chapter conn = new Chapter();
+		try{
+			conn.initMongo();
 			
-			if(slideShowId != null)
-				if(!slideShowId.equals(""))
-					doc.append("slideShowId", slideShowId);
-				else
-					removeFields.append("slideShowId", 1);
-			
-			if(mainFeature != null){
-				if(!mainFeature.equals("")){
-					doc.append("mainFeature", mainFeature);
-				}else{
-					removeFields.append("mainFeature", 1);
+			ArrayList<String> legacyIds = new ArrayList<String>();
+			for(Chapter chapter : chapters){
+				if(!chapter.isNew()){
+					legacyIds.add(chapter.id);
 				}
 			}
+			Map<String, ObjectId> found = LegacyIdResolver.getInstance().resolveAll(conn.db, "chapters", legacyIds);
 			
-			if(inactive != null){
-				if(!inactive.equals("")){
-					doc.append("inactive", inactive);
-				}else{
-					removeFields.append("inactive", 1);
-				}
-			}
+			DBCollection coll = conn.db.getCollection("chapters");
+			BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+			ArrayList<Chapter> written = new ArrayList<Chapter>();
+			ArrayList<ObjectId> writtenIds = new ArrayList<ObjectId>();
+			HashSet<ObjectId> seenObjectIds = new HashSet<ObjectId>();
 			
-			//Lets see if we need to update this chapter's joins to reflect it's adminOnly status
-			Boolean isAdminOnly = false;
-			Boolean updateAdminOnly = false;
-			if(adminOnly != null){
-				updateAdminOnly = true;
-				if(!adminOnly.equals("")){
-					doc.append("adminOnly", adminOnly);
-					isAdminOnly = true;
+			for(Chapter chapter : chapters){
+				BasicDBObject doc = new BasicDBObject();
+				BasicDBObject removeFields = new BasicDBObject();
+				chapter.getChanges(doc, removeFields);
+				
+				ObjectId _id;
+				if(chapter.isNew()){
+					_id = newIds.get(chapter);
+					doc.append("_id", _id);
+					bulk.insert(doc);
 				}else{
-					removeFields.append("adminOnly", 1);
+					_id = found.get(chapter.id);
+					if(_id == null){
+						ret.put(chapter.id, false);
+						continue;
+					}
+					//Its id and its oldId are the same chapter
+					if(!seenObjectIds.add(_id)){
+						throw(new InternalErrorException("A chapter can only be saved once in a list."));
+					}
+					bulk.find(new BasicDBObject("_id", _id)).updateOne(chapter.getUpdate(doc, removeFields));
 				}
+				written.add(chapter);
+				writtenIds.add(_id);
 			}
 			
-			if(displayImage != null){
-				if(!displayImage.equals("")){
-					doc.append("displayImage", displayImage);
-				}else{
-					removeFields.append("displayImage", 1);
+			if(!written.isEmpty()){
+				HashSet<Integer> failed = new HashSet<Integer>();
+				boolean writeConcernFailed = false;
+				ArrayList<ObjectId> summaryChanged = new ArrayList<ObjectId>();
+				try{
+					bulk.execute();
+				}catch(BulkWriteException e){
+					e.printStackTrace();
+					//Unordered so everything but these still went through
+					for(BulkWriteError error : e.getWriteErrors()){
+						failed.add(error.getIndex());
+					}
+					//They went through on the primary but we can't count on them staying
+					writeConcernFailed = e.getWriteConcernError() != null;
 				}
-			}
-			
-			if(randomFeatures != null){
-				if(!randomFeatures.equals("")){
-					doc.append("randomFeatures", randomFeatures);
-				}else{
-					removeFields.append("randomFeatures", 1);
+				
+				for(int i = 0; i < written.size(); i++){
+					Chapter chapter = written.get(i);
+					boolean applied = !failed.contains(i);
+					boolean saved = applied && !writeConcernFailed;
+					String key = chapter.isNew() ? writtenIds.get(i).toString() : chapter.id;
+					if(applied && writeConcernFailed){
+						//Keep the changes so saving again writes them again
+						if(chapter.isNew()){
+							chapter.id = writtenIds.get(i).toString();
+						}
+						ChapterCache.getInstance().invalidate(writtenIds.get(i).toString());
+					}else if(saved){
+						if(chapter.isNew()){
+							chapter.id = writtenIds.get(i).toString();
+						}else{
+							ChapterCache.getInstance().invalidate(writtenIds.get(i).toString());
+							ChapterCache.getInstance().invalidate(chapter.id);
+							LegacyIdResolver.getInstance().invalidate("chapters", chapter.id);
+							if(chapter.hasSummaryChanges()){
+								summaryChanged.add(writtenIds.get(i));
+							}
+						}
+						chapter.changes.clear();
+					}
+					ret.put(key, saved);
 				}
-			}
-			
-			if(showUpdatedContent != null){
-				if(!showUpdatedContent.equals("")){
-					doc.append("showUpdatedContent", showUpdatedContent);
-				}else{
-					removeFields.append("showUpdatedContent", 1);
+				
+				for(ObjectId _id : summaryChanged){
+					JoinSummaryMaintainer.refreshChapter(conn.db, _id);
 				}
 			}
-			
-			if(lcpCopyOfChapter != null){
-				if(!lcpCopyOfChapter.equals("")){
-					doc.append("lcpCopyOfChapter", lcpCopyOfChapter);
-				}else{
-					removeFields.append("lcpCopyOfChapter", 1);
+		}catch(InternalErrorException e){
+			//The duplicate check, the caller has to know why nothing was saved
+			throw(e);
+		}catch(Exception e){
+			e.printStackTrace();
+			//Anything we didn't get to wasn't saved
+			for(Chapter chapter : chapters){
+				String key = chapter.isNew() ? newIds.get(chapter).toString() : chapter.id;
+				if(!ret.containsKey(key)){
+					ret.put(key, false);
 				}
 			}
-			
-			if(lcpLiveUpdates != null){
-				if(!lcpLiveUpdates.equals("")){
-					doc.append("lcpLiveUpdates", lcpLiveUpdates);
-				}else{
-					removeFields.append("lcpLiveUpdates", 1);
-				}
+		}finally{
+			conn.deInitMongo();
+		}
+		return ret;
+	}
+	
+	//true if this chapter hasn't been saved yet
+	private boolean isNew(){
+		return id == null || id.equals("0");
+	}
+	
+	//true if the join summaries of this chapter have to be refreshed after it is saved
+	private boolean hasSummaryChanges(){
+		if(!JoinSummaryMaintainer.isEnabled()){
+			return false;
+		}
+		for(String field : changes.keySet()){
+			if(changes.get(field) != null && JoinSummaryMaintainer.isSummaryField(field)){
+				return true;
 			}
-			
-			if(lcpPrivateCommenting != null){
-				if(!lcpPrivateCommenting.equals("")){
-					doc.append("lcpPrivateCommenting", lcpPrivateCommenting);
-				}else{
-					removeFields.append("lcpPrivateCommenting", 1);
-				}
+		}
+		return false;
+	}
+	
+	//Adds the fields that were set since the last save to the $set and $unset documents
+	//All fields that are left null are not updated or touched
+	private void getChanges(BasicDBObject doc, BasicDBObject removeFields){
+		for(String field : changes.keySet()){
+			String value = changes.get(field);
+			if(value == null){
+				continue;
 			}
-			
-			DBCollection coll = db.getCollection("chapters");
-			
-			//Only update fields with values
-			if(id != null && !id.equals("0")){
-				BasicDBObject q = new BasicDBObject();
-				if(ObjectId.isValid(id)){
-					q.append("_id", new ObjectId(id));
-				}else{
-					BasicDBObject idQuery = new BasicDBObject("oldId", id);
-					DBCollection idColl = db.getCollection("chapters");
-					DBObject found = idColl.findOne(idQuery);	
-					q.append("_id", found.get("_id"));
-				}
-				
-				doc.append("lastUpdatedTime", new Date());
-				
-				BasicDBObject o = new BasicDBObject("$set", doc);
-				o.append("$unset", removeFields);
-				coll.update(q, o);
+			//An empty name is still a name, everything else that is empty gets removed
+			if(!value.equals("") || field.equals("name")){
+				doc.append(field, value);
 			}else{
-				coll.insert(doc);
+				removeFields.append(field, 1);
 			}
-			
-			id = doc.get("_id").toString();
-			
-		}catch(Exception e){
-			
 		}
-		return false;
+	}
+	
+	//returns the update for an existing chapter
+	private BasicDBObject getUpdate(BasicDBObject doc, BasicDBObject removeFields){
+		doc.append("lastUpdatedTime", new Date());
+		
+		BasicDBObject o = new BasicDBObject("$set", doc);
+		if(!removeFields.isEmpty()){
+			o.append("$unset", removeFields);
+		}
+		return o;
 	}
 	
 	//
@@ -312,6 +385,7 @@ public class Chapter extends DAO {
 	
 	public void setName(String name){
 		this.name = name;
+		changes.put("name", name);
 	}
 	
 	public String getDescription(){
@@ -320,6 +394,7 @@ public class Chapter extends DAO {
 	
 	public void setDescription(String description){
 		this.description = description;
+		changes.put("description", description);
 	}
 
 	public String getAbstract(){
@@ -328,6 +403,7 @@ public class Chapter extends DAO {
 	
 	public void setAbstract(String abs){
 		this.abs = abs;
+		changes.put("abstract", abs);
 	}
 	
 	public String getShortName(){
@@ -336,6 +412,7 @@ public class Chapter extends DAO {
 	
 	public void setShortName(String shortName){
 		this.shortName = shortName;
+		changes.put("shortName", shortName);
 	}
 	
 	public String getMainFeature(){
@@ -344,6 +421,7 @@ public class Chapter extends DAO {
 	
 	public void setMainFeature(String mainFeature){
 		this.mainFeature = mainFeature;
+		changes.put("mainFeature", mainFeature);
 	}
 	
 	public String getInactive(){
@@ -352,6 +430,7 @@ public class Chapter extends DAO {
 	
 	public void setInactive(String inactive){
 		this.inactive = inactive;
+		changes.put("inactive", inactive);
 	}
 	
 	public String getAdminOnly(){
@@ -360,6 +439,7 @@ public class Chapter extends DAO {
 	
 	public void setAdminOnly(String adminOnly){
 		this.adminOnly = adminOnly;
+		changes.put("adminOnly", adminOnly);
 	}
 	
 	public String getDisplayImage(){
@@ -368,6 +448,7 @@ public class Chapter extends DAO {
 	
 	public void setDisplayImage(String displayImage){
 		this.displayImage = displayImage;
+		changes.put("displayImage", displayImage);
 	}
 	
 	public String getRandomFeatures(){
@@ -376,6 +457,7 @@ public class Chapter extends DAO {
 	
 	public void setRandomFeatures(String randomFeatures){
 		this.randomFeatures = randomFeatures;
+		changes.put("randomFeatures", randomFeatures);
 	}
 	
 	public String getShowUpdatedContent(){
@@ -384,6 +466,7 @@ public class Chapter extends DAO {
 	
 	public void setShowUpdatedContent(String showUpdatedContent){
 		this.showUpdatedContent = showUpdatedContent;
+		changes.put("showUpdatedContent", showUpdatedContent);
 	}
 	
 	public String getlcpLiveUpdates(){
@@ -392,6 +475,7 @@ public class Chapter extends DAO {
 	
 	public void setLCPCopyOfChapter(String lcpCopyOfChapter){
 		this.lcpCopyOfChapter = lcpCopyOfChapter;
+		changes.put("lcpCopyOfChapter", lcpCopyOfChapter);
 	}
 	
 	public String getLCPLiveUpdates(){
@@ -400,6 +484,7 @@ public class Chapter extends DAO {
 	
 	public void setLCPLiveUpdates(String lcpLiveUpdates){
 		this.lcpLiveUpdates = lcpLiveUpdates;
+		changes.put("lcpLiveUpdates", lcpLiveUpdates);
 	}
 	
 	public String getLCPPrivateCommenting(){
@@ -408,6 +493,7 @@ public class Chapter extends DAO {
 	
 	public void setLCPPrivateCommenting(String lcpPrivateCommenting){
 		this.lcpPrivateCommenting = lcpPrivateCommenting;
+		changes.put("lcpPrivateCommenting", lcpPrivateCommenting);
 	}
 	
 	public String getImageId(){
@@ -416,6 +502,7 @@ public class Chapter extends DAO {
 	
 	public void setImageId(String imageId){
 		this.imageId = imageId;
+		changes.put("imageId", imageId);
 	}
 	
 	public String getSlideShowId(){
@@ -424,6 +511,7 @@ public class Chapter extends DAO {
 	
 	public void setSlideShowId(String slideShowId){
 		this.slideShowId = slideShowId;
+		changes.put("slideShowId", slideShowId);
 	}
 	
 	public Date getLastUpdatedTime(){
@@ -440,5 +528,6 @@ public class Chapter extends DAO {
 	
 	public void setGalleryId(String galleryId){
 		this.galleryId = galleryId;
+		changes.put("galleryId", galleryId);
 	}
 }
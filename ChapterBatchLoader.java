@@ -0,0 +1,296 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import net.javs.exceptions.NotFoundException;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBObject;
+
+/**
+ * Chapter Batch Loader
+ *
+ * Collects the chapters and legacy ids a request asks for and gets them all at once,
+ * instead of one findOne per getChapter.
+ *
+ * load and resolve hand back a future right away and queue the id. dispatch then sends
+ * one query for every queued chapter (by _id and oldId together) and one query per scope for the legacy ids.
+ * Each future completes with what was found, or with a NotFoundException.
+ *
+ * An id is only asked for once per loader, asking again waits on the same query,
+ * so a loader is meant to live for one request. Chapters already in the ChapterCache don't wait for dispatch.
+ *
+ * With an auto dispatch delay the queue is dispatched that long after the first id is queued,
+ * otherwise the request calls dispatch itself once it has queued everything it needs.
+ * An auto dispatch is only timed by a shared scheduler thread, its queries run on the loader's executor.
+ *
+ * Everyone who loads the same chapter gets their own copy of it, so it can be changed
+ */
+public class ChapterBatchLoader {
+
+	//Times the auto dispatches and hands them to the executor of their loader, nothing blocks on it
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "chapter-batch-loader");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	//Gives each caller their own copy of a shared chapter
+	private static final Function<DBObject, DBObject> copy = new Function<DBObject, DBObject>(){
+		public DBObject apply(DBObject chapter){
+			return ChapterCache.copy(chapter);
+		}
+	};
+
+	private final ChapterDAO dao;
+	private final long autoDispatchDelay;
+	private final Executor executor;
+
+	//Every chapter and id asked for, keyed on the id that was asked for
+	private final HashMap<String, CompletableFuture<DBObject>> chapters = new HashMap<String, CompletableFuture<DBObject>>();
+	private final HashMap<String, CompletableFuture<ObjectId>> ids = new HashMap<String, CompletableFuture<ObjectId>>();
+
+	//The ones that haven't been dispatched yet
+	private ArrayList<String> queuedChapters = new ArrayList<String>();
+	private ArrayList<String> queuedIds = new ArrayList<String>();
+	private boolean dispatchScheduled = false;
+
+	private int queries = 0;
+
+	/**
+	 * A loader that only dispatches when dispatch is called
+	 */
+	public ChapterBatchLoader(){
+		this(new ChapterDAO(), 0);
+	}
+
+	/**
+	 * Auto dispatches run on the same executor AsyncChapterDAO uses by default
+	 *
+	 * @param dao The DAO whose settings to load with
+	 * @param autoDispatchDelay How long after the first id is queued to dispatch, in milliseconds, 0 to only dispatch when dispatch is called
+	 */
+	public ChapterBatchLoader(ChapterDAO dao, long autoDispatchDelay){
+		this(dao, autoDispatchDelay, AsyncChapterDAO.getDefaultExecutor());
+	}
+
+	/**
+	 * @param dao The DAO whose settings to load with
+	 * @param autoDispatchDelay How long after the first id is queued to dispatch, in milliseconds, 0 to only dispatch when dispatch is called
+	 * @param executor What the auto dispatches run their queries on
+	 */
+	public ChapterBatchLoader(ChapterDAO dao, long autoDispatchDelay, Executor executor){
+		this.dao = dao;
+		this.autoDispatchDelay = autoDispatchDelay;
+		this.executor = executor;
+	}
+
+	/**
+	 * Queues a chapter to be loaded
+	 *
+	 * @param chapterId The mongo id or oldId of the chapter
+	 * @return the future for the caller's own copy of the chapter, it fails with a NotFoundException if there is no such chapter
+	 */
+	public synchronized CompletableFuture<DBObject> load(String chapterId){
+		//The chapters come back keyed on their lowercase _id, so an uppercase one has to be asked for the same way
+		if(ObjectId.isValid(chapterId)){
+			chapterId = new ObjectId(chapterId).toString();
+		}
+		CompletableFuture<DBObject> future = chapters.get(chapterId);
+		if(future != null){
+			return future.thenApply(copy);
+		}
+
+		DBObject cached = ChapterCache.getInstance().get(chapterId);
+		if(cached != null){
+			future = CompletableFuture.completedFuture(cached);
+		}else{
+			future = new CompletableFuture<DBObject>();
+			queuedChapters.add(chapterId);
+			scheduleDispatch();
+		}
+		chapters.put(chapterId, future);
+		return future.thenApply(copy);
+	}
+
+	/**
+	 * Queues many chapters to be loaded
+	 *
+	 * @param chapterIds
+	 * @return the futures, in the same order as the ids
+	 */
+	public synchronized List<CompletableFuture<DBObject>> loadMany(Collection<String> chapterIds){
+		ArrayList<CompletableFuture<DBObject>> ret = new ArrayList<CompletableFuture<DBObject>>();
+		for(String chapterId : chapterIds){
+			ret.add(load(chapterId));
+		}
+		return ret;
+	}
+
+	/**
+	 * Queues an id to be turned into a mongo id
+	 *
+	 * @param scope Must be either "content" or "chapters"
+	 * @param id A legacy id or mongo id
+	 * @return the future for the mongo id, it fails with a NotFoundException if the id could not be found
+	 */
+	public synchronized CompletableFuture<ObjectId> resolve(String scope, String id){
+		if(ObjectId.isValid(id)){
+			return CompletableFuture.completedFuture(new ObjectId(id));
+		}
+		String key = scope + ":" + id;
+		CompletableFuture<ObjectId> future = ids.get(key);
+		if(future == null){
+			future = new CompletableFuture<ObjectId>();
+			ids.put(key, future);
+			queuedIds.add(key);
+			scheduleDispatch();
+		}
+		return future;
+	}
+
+	/**
+	 * Loads everything that is queued, and completes its futures before returning
+	 */
+	public void dispatch(){
+		ArrayList<String> chapterIds;
+		ArrayList<String> idKeys;
+		synchronized(this){
+			chapterIds = queuedChapters;
+			idKeys = queuedIds;
+			queuedChapters = new ArrayList<String>();
+			queuedIds = new ArrayList<String>();
+			dispatchScheduled = false;
+		}
+
+		//Dispatches can run at the same time, and a DAO holds its connection while it works
+		ChapterDAO conn = dao.copySettings();
+		if(!chapterIds.isEmpty()){
+			dispatchChapters(conn, chapterIds);
+		}
+		if(!idKeys.isEmpty()){
+			dispatchIds(conn, idKeys);
+		}
+	}
+
+	/**
+	 * @return the number of queries this loader has sent
+	 */
+	public synchronized int getQueries(){
+		return this.queries;
+	}
+
+	private void dispatchChapters(ChapterDAO conn, ArrayList<String> chapterIds){
+		HashMap<String, DBObject> found = new HashMap<String, DBObject>();
+		try{
+			countQuery();
+			for(DBObject chapter : conn.getChapters(chapterIds)){
+				found.put(chapter.get("_id").toString(), chapter);
+				if(chapter.containsField("oldId")){
+					found.put(chapter.get("oldId").toString(), chapter);
+				}
+			}
+		}catch(Exception e){
+			e.printStackTrace();
+			for(String chapterId : chapterIds){
+				getChapterFuture(chapterId).completeExceptionally(e);
+			}
+			return;
+		}
+
+		for(String chapterId : chapterIds){
+			DBObject chapter = found.get(chapterId);
+			if(chapter != null){
+				getChapterFuture(chapterId).complete(chapter);
+			}else{
+				getChapterFuture(chapterId).completeExceptionally(new NotFoundException("That chapter could not be found"));
+			}
+		}
+	}
+
+	private void dispatchIds(ChapterDAO conn, ArrayList<String> idKeys){
+		//One query per scope
+		HashMap<String, ArrayList<String>> byScope = new HashMap<String, ArrayList<String>>();
+		for(String key : idKeys){
+			int split = key.indexOf(':');
+			String scope = key.substring(0, split);
+			if(!byScope.containsKey(scope)){
+				byScope.put(scope, new ArrayList<String>());
+			}
+			byScope.get(scope).add(key.substring(split + 1));
+		}
+
+		for(String scope : byScope.keySet()){
+			ArrayList<String> scopeIds = byScope.get(scope);
+			Map<String, ObjectId> found;
+			try{
+				countQuery();
+				found = conn.resolveIds(scope, scopeIds);
+			}catch(Exception e){
+				e.printStackTrace();
+				for(String id : scopeIds){
+					getIdFuture(scope + ":" + id).completeExceptionally(e);
+				}
+				continue;
+			}
+
+			for(String id : scopeIds){
+				ObjectId mongoId = found.get(id);
+				if(mongoId != null){
+					getIdFuture(scope + ":" + id).complete(mongoId);
+				}else{
+					getIdFuture(scope + ":" + id).completeExceptionally(new NotFoundException("This " + scope + " was not found."));
+				}
+			}
+		}
+	}
+
+	//@Note: has to be called holding this
+	private void scheduleDispatch(){
+		if(autoDispatchDelay > 0 && !dispatchScheduled){
+			dispatchScheduled = true;
+			scheduler.schedule(new Runnable(){
+				public void run(){
+					try{
+						executor.execute(new Runnable(){
+							public void run(){
+								dispatch();
+							}
+						});
+					}catch(RejectedExecutionException e){
+						//Better to hold up the scheduler than to leave the futures waiting forever
+						e.printStackTrace();
+						dispatch();
+					}
+				}
+			}, autoDispatchDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized CompletableFuture<DBObject> getChapterFuture(String chapterId){
+		return chapters.get(chapterId);
+	}
+
+	private synchronized CompletableFuture<ObjectId> getIdFuture(String key){
+		return ids.get(key);
+	}
+
+	private synchronized void countQuery(){
+		queries++;
+	}
+}
@@ -0,0 +1,328 @@
+package net.javs.dao.chapters;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Chapter Cache
+ *
+ * Read through cache of chapter documents, kept in process.
+ * Chapters can be looked up by their mongo id or by their oldId.
+ *
+ * Entries are evicted once there are more than maxSize of them (least recently used first)
+ * or once they are older than the ttl.
+ *
+ * Every write to a chapter has to invalidate it here after the write is done.
+ * Each invalidation bumps a generation and remembers it for the chapter, or for the scope that was pulled from every chapter.
+ * A read only gets to put what it found if that chapter wasn't invalidated since it started,
+ * so a read that raced a write can't put the old joins back, and writes to other chapters don't stop it.
+ *
+ * It is off until setEnabled(true) is called.
+ * Invalidation only happens in this process, so a chapter changed by another app server
+ * is served as it was for up to the ttl. Only turn it on when that is acceptable, with a ttl to match.
+ *
+ * There is one shared cache for every DAO, use getInstance()
+ */
+public class ChapterCache {
+
+	private static final ChapterCache instance = new ChapterCache(5000, 5 * 60 * 1000);
+
+	//The most invalidations to remember, the reads that started before the ones that are forgotten can't put
+	private static final int maxInvalidations = 10000;
+
+	private final int maxSize;
+	private long ttl;
+	private volatile boolean enabled = false;
+	private long generation = 0;
+	//Reads that started before this can't put, the invalidations that would have stopped them are forgotten
+	private long forgottenBefore = 0;
+
+	//The generation each chapter id or oldId, and each scope pulled from every chapter, was last invalidated at
+	//In insertion order so the oldest ones are forgotten first
+	private final LinkedHashMap<String, Long> invalidatedIds = new LinkedHashMap<String, Long>();
+	private final LinkedHashMap<ObjectId, Long> invalidatedJoins = new LinkedHashMap<ObjectId, Long>();
+
+	//Keyed on the mongo id, kept in access order so the eldest entry is the least recently used
+	private final LinkedHashMap<String, Entry> chapters;
+	//oldId to mongo id for the chapters that have one
+	private final HashMap<String, String> oldIds = new HashMap<String, String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize The most chapters to keep
+	 * @param ttl How long a chapter can be kept, in milliseconds
+	 */
+	public ChapterCache(final int maxSize, long ttl){
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.chapters = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+				if(size() > maxSize){
+					removeOldId(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public static ChapterCache getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Gets a copy of a cached chapter
+	 *
+	 * @param chapterId The mongo id or oldId of the chapter
+	 * @return the chapter, or null if it is not cached
+	 */
+	public DBObject get(String chapterId){
+		if(!enabled){
+			return null;
+		}
+		DBObject found = null;
+		synchronized(this){
+			String key = getKey(chapterId);
+			Entry entry = key == null ? null : chapters.get(key);
+			if(entry != null && entry.expires < System.currentTimeMillis()){
+				chapters.remove(key);
+				removeOldId(entry);
+				entry = null;
+			}
+			if(entry != null){
+				found = entry.chapter;
+			}
+		}
+
+		if(found == null){
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		//Hand out a copy so nobody can change what is cached
+		return copy(found);
+	}
+
+	/**
+	 * The current generation, get this before reading chapters from mongo and pass it to put
+	 *
+	 * @return
+	 */
+	public synchronized long getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * Caches a chapter read from mongo
+	 * The chapter is not cached if it was invalidated since the generation was read
+	 *
+	 * @param chapter A full chapter document
+	 * @param generation The generation from before the chapter was read
+	 */
+	public void put(DBObject chapter, long generation){
+		if(!enabled || chapter == null || !chapter.containsField("_id")){
+			return;
+		}
+		Entry entry = new Entry();
+		entry.chapter = copy(chapter);
+		entry.id = chapter.get("_id").toString();
+		entry.oldId = chapter.containsField("oldId") ? chapter.get("oldId").toString() : null;
+		entry.expires = System.currentTimeMillis() + ttl;
+
+		synchronized(this){
+			if(wasInvalidatedSince(entry, generation)){
+				return;
+			}
+			Entry old = chapters.put(entry.id, entry);
+			if(old != null){
+				removeOldId(old);
+			}
+			if(entry.oldId != null){
+				oldIds.put(entry.oldId, entry.id);
+			}
+		}
+	}
+
+	/**
+	 * Removes a chapter
+	 *
+	 * @param chapterId The mongo id or oldId of the chapter
+	 */
+	public synchronized void invalidate(String chapterId){
+		generation++;
+		remember(invalidatedIds, chapterId);
+		String key = getKey(chapterId);
+		if(key != null){
+			remember(invalidatedIds, key);
+			Entry entry = chapters.remove(key);
+			if(entry != null){
+				removeOldId(entry);
+			}
+		}
+		//A legacy id may not have been cached under its oldId yet
+		oldIds.remove(chapterId);
+	}
+
+	/**
+	 * Removes every chapter that has this scope joined to it
+	 * Used for the updates that pull a join from every chapter
+	 *
+	 * @param scopeId
+	 */
+	public synchronized void invalidateJoinedTo(ObjectId scopeId){
+		generation++;
+		remember(invalidatedJoins, scopeId);
+		Iterator<Entry> it = chapters.values().iterator();
+		while(it.hasNext()){
+			Entry entry = it.next();
+			if(hasJoin(entry.chapter, scopeId)){
+				it.remove();
+				removeOldId(entry);
+			}
+		}
+	}
+
+	public synchronized void clear(){
+		generation++;
+		chapters.clear();
+		oldIds.clear();
+		//Nothing that started before this can put
+		invalidatedIds.clear();
+		invalidatedJoins.clear();
+		forgottenBefore = generation;
+	}
+
+	public boolean isEnabled(){
+		return this.enabled;
+	}
+
+	/**
+	 * Turns the cache on or off, turning it off also empties it
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled){
+		this.enabled = enabled;
+		if(!enabled){
+			clear();
+		}
+	}
+
+	//
+	// Metrics
+	//
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public synchronized int getSize(){
+		return chapters.size();
+	}
+
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	public long getTtl(){
+		return this.ttl;
+	}
+
+	public void setTtl(long ttl){
+		this.ttl = ttl;
+	}
+
+	//@Note: has to be called holding this
+	private <K> void remember(LinkedHashMap<K, Long> invalidated, K key){
+		//Put it back on the end so it is forgotten last
+		invalidated.remove(key);
+		invalidated.put(key, generation);
+		if(invalidated.size() > maxInvalidations){
+			Iterator<Long> it = invalidated.values().iterator();
+			forgottenBefore = Math.max(forgottenBefore, it.next());
+			it.remove();
+		}
+	}
+
+	//@Note: has to be called holding this
+	private boolean wasInvalidatedSince(Entry entry, long generation){
+		if(generation < forgottenBefore){
+			return true;
+		}
+		if(isAfter(invalidatedIds.get(entry.id), generation) || (entry.oldId != null && isAfter(invalidatedIds.get(entry.oldId), generation))){
+			return true;
+		}
+		//A scope was pulled from every chapter, and this one still has it so it may be from before that
+		if(!invalidatedJoins.isEmpty()){
+			Object joins = entry.chapter.get("joins");
+			if(joins instanceof List){
+				for(Object join : (List) joins){
+					if(join instanceof DBObject && isAfter(invalidatedJoins.get(((DBObject) join).get("_id")), generation)){
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isAfter(Long invalidated, long generation){
+		return invalidated != null && invalidated > generation;
+	}
+
+	//The mongo id a chapter is cached under
+	private String getKey(String chapterId){
+		if(ObjectId.isValid(chapterId)){
+			return chapterId;
+		}
+		return oldIds.get(chapterId);
+	}
+
+	private void removeOldId(Entry entry){
+		if(entry.oldId != null && entry.id.equals(oldIds.get(entry.oldId))){
+			oldIds.remove(entry.oldId);
+		}
+	}
+
+	private static boolean hasJoin(DBObject chapter, ObjectId scopeId){
+		Object joins = chapter.get("joins");
+		if(joins instanceof List){
+			for(Object join : (List) joins){
+				if(join instanceof DBObject && scopeId.equals(((DBObject) join).get("_id"))){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	//Also used by ChapterBatchLoader to give every caller their own chapter
+	static DBObject copy(DBObject chapter){
+		if(chapter instanceof BasicDBObject){
+			return (DBObject) ((BasicDBObject) chapter).copy();
+		}
+		return new BasicDBObject(chapter.toMap());
+	}
+
+	private static class Entry {
+		String id;
+		String oldId;
+		DBObject chapter;
+		long expires;
+	}
+}
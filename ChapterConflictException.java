@@ -0,0 +1,23 @@
+package net.javs.dao.chapters;
+
+import net.javs.exceptions.InternalErrorException;
+
+/**
+ * Thrown when the joins of a chapter kept changing under a read-modify-write
+ * and it still could not be written after every retry
+ */
+public class ChapterConflictException extends InternalErrorException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String chapterId;
+
+	public ChapterConflictException(String chapterId, int attempts){
+		super("Chapter " + chapterId + " was changed by someone else " + attempts + " times in a row.");
+		this.chapterId = chapterId;
+	}
+
+	public String getChapterId(){
+		return this.chapterId;
+	}
+}
@@ -1,28 +1,59 @@
 package net.javs.dao.chapters;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import net.javs.dao.DAO;
 import net.javs.dao.books.Book;
 import net.javs.exceptions.InternalErrorException;
 import net.javs.exceptions.NotFoundException;
 
 import org.bson.types.ObjectId;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.util.JSON;
 
 /**
  * Chapter DAO
@@ -77,17 +108,183 @@ import com.mongodb.DBObject;
  * 		   we can't really filter and get things from different tables in an efficient manner so we do transformations to grab things join to chapters
  * 		   this sub document also maintains the order of the content because we can also not sort this sub document on return
  * 		   "LCP" related fields are used when content or chaptered is published somewhere other than the original book
+ * "version" is incremented by every write to "joins", the writes that read the joins first only go through if it hasn't changed
  */
 
-public class ChapterDAO extends DAO {
+public class ChapterDAO extends PooledDAO {
+	
+	//Shared pool used to run the content and chapter lookups at the same time
+	//It never grows past lookupThreads, once those and the queue are busy the caller runs the lookup itself
+	private static final int lookupThreads = 16;
+	private static final ExecutorService lookupExecutor = createLookupExecutor();
+	
+	//When set every query that can hit many chapters is explained first to make sure it uses an index
+	private static ChapterIndexManager.Mode queryShapeCheck = null;
+	
+	private boolean concurrentLookups = false;
+	private long lookupTimeout = 0;
+	private int maxJoinRetries = 5;
+	private int removalBatchSize = 100;
+	private long removalBatchDelay = 100;
+	private boolean denormalizedJoins = false;
 	
 	public ChapterDAO(){
 
 	}
 	
+	/**
+	 * A new DAO with the same settings as this one
+	 * A DAO holds its connection while it works, so each thread needs its own
+	 * 
+	 * @return
+	 */
+	public ChapterDAO copySettings(){
+		ChapterDAO copy = new ChapterDAO();
+		copy.concurrentLookups = this.concurrentLookups;
+		copy.lookupTimeout = this.lookupTimeout;
+		copy.maxJoinRetries = this.maxJoinRetries;
+		copy.removalBatchSize = this.removalBatchSize;
+		copy.removalBatchDelay = this.removalBatchDelay;
+		copy.denormalizedJoins = this.denormalizedJoins;
+		return copy;
+	}
+	
+	private static ExecutorService createLookupExecutor(){
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(lookupThreads, lookupThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(lookupThreads * 4), new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "chapter-lookup");
+				t.setDaemon(true);
+				return t;
+			}
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Creates or checks the indexes that the chapter queries need
+	 * Should be called once at startup
+	 * 
+	 * @param mode
+	 * @return a description of each index that was missing
+	 */
+	public ArrayList<String> ensureIndexes(ChapterIndexManager.Mode mode){
+		try{
+			this.initMongo();
+			return ChapterIndexManager.ensureIndexes(db, mode);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Turns on checking that the queries that can hit many chapters use an index
+	 * WARN keeps the query for ChapterIndexManager.getUnindexedQueries and FAIL throws an InternalErrorException, null turns it off
+	 * 
+	 * @note Every checked query is explained first, so this is meant for testing and staging
+	 * @param mode
+	 */
+	public static void setQueryShapeCheck(ChapterIndexManager.Mode mode){
+		queryShapeCheck = mode;
+	}
+	
+	/**
+	 * When set to true the content_versions and chapters lookups for the joins of a chapter
+	 * are sent at the same time instead of one after the other
+	 * 
+	 * @param concurrentLookups
+	 */
+	public void setConcurrentLookups(boolean concurrentLookups){
+		this.concurrentLookups = concurrentLookups;
+	}
+	
+	public boolean getConcurrentLookups(){
+		return this.concurrentLookups;
+	}
+	
+	/**
+	 * Sets how long the lookups for the joins of a chapter can take, in milliseconds
+	 * This is one deadline for all the lookups of a call, whether they run one after the other or at the same time.
+	 * A lookup that runs past it is abandoned and its joins come back with only the join information and "incomplete" set to true
+	 * 0 means no limit
+	 * 
+	 * @param lookupTimeout
+	 */
+	public void setLookupTimeout(long lookupTimeout){
+		this.lookupTimeout = lookupTimeout;
+	}
+	
+	public long getLookupTimeout(){
+		return this.lookupTimeout;
+	}
+	
+	/**
+	 * Sets how many times a read-modify-write of the joins of a chapter (changeJoinOrder, the moves and applyJoinDiff)
+	 * is tried when someone else keeps writing to the chapter before a ChapterConflictException is thrown
+	 * 
+	 * Every write to the joins increments the chapter's "version", and these only write if it hasn't changed since they read.
+	 * 
+	 * @param maxJoinRetries
+	 */
+	public void setMaxJoinRetries(int maxJoinRetries){
+		this.maxJoinRetries = maxJoinRetries;
+	}
+	
+	public int getMaxJoinRetries(){
+		return this.maxJoinRetries;
+	}
+	
+	/**
+	 * Sets how many chapters the background removals pull a join from in one write
+	 * 
+	 * @param removalBatchSize
+	 */
+	public void setRemovalBatchSize(int removalBatchSize){
+		this.removalBatchSize = removalBatchSize;
+	}
+	
+	public int getRemovalBatchSize(){
+		return this.removalBatchSize;
+	}
+	
+	/**
+	 * Sets how long the background removals wait between batches, in milliseconds
+	 * 
+	 * @param removalBatchDelay
+	 */
+	public void setRemovalBatchDelay(long removalBatchDelay){
+		this.removalBatchDelay = removalBatchDelay;
+	}
+	
+	public long getRemovalBatchDelay(){
+		return this.removalBatchDelay;
+	}
+	
+	/**
+	 * When set to true chapter listings (listing set to true) use the summaries JoinSummaryMaintainer keeps on the joins
+	 * and only look up the joins that don't have one yet
+	 * 
+	 * Off by default. Only turn it on when whatever publishes and unpublishes content versions
+	 * calls refreshContentSummaries, or the listings keep showing the summary from before,
+	 * visibility included, until something else refreshes it. Nothing in this package publishes content.
+	 * 
+	 * @note The summaries don't have the body, users or costs of content or the join scopes of chapters,
+	 * 		 so the views that need them still do the lookups
+	 * @param denormalizedJoins
+	 */
+	public void setDenormalizedJoins(boolean denormalizedJoins){
+		this.denormalizedJoins = denormalizedJoins;
+	}
+	
+	public boolean getDenormalizedJoins(){
+		return this.denormalizedJoins;
+	}
+	
 	/**
 	 * Gets a specific chapter
 	 * Returns the DBObject that can later be turned into a map or string
+	 * Chapters are served from the ChapterCache when it is turned on and they are there
 	 * 
 	 * @note Keeping it as a DBObject was the only way to keep the join _ids hashed
 	 * @param chapterId
@@ -96,7 +293,12 @@ public class ChapterDAO extends DAO {
 	//Had to have this be a DBOject or would return _id in sub documents unhashed
 	public DBObject getChapter(String chapterId){
 		HashMap<String,Object> m = new HashMap<String,Object>();
-		DBObject obj = null;	
+		DBObject obj = ChapterCache.getInstance().get(chapterId);
+		if(obj != null){
+			return obj;
+		}
+		
+		long generation = ChapterCache.getInstance().getGeneration();
 		try{
 			this.initMongo();			
 			//first, see if the id is a MongoId
@@ -109,248 +311,1609 @@ public class ChapterDAO extends DAO {
 			DBCollection coll = db.getCollection("chapters");
 			DBObject found = coll.findOne(query);	
 			obj = found;
+			ChapterCache.getInstance().put(obj, generation);
 		}catch(Exception e){
 			e.printStackTrace();
 		}finally{
 			this.deInitMongo();
 		}
-		if(obj==null){
-			throw(new NotFoundException("That chapter could not be found"));
+		if(obj==null){
+			throw(new NotFoundException("That chapter could not be found"));
+		}
+		return obj;
+	}
+
+	/**
+	 * Gets many chapters with one query
+	 * Every chapter that is found is put in the ChapterCache when it is turned on, see ChapterBatchLoader
+	 * 
+	 * @param chapterIds The mongo ids or oldIds of the chapters
+	 * @return the chapters that were found, in no particular order
+	 */
+	public ArrayList<DBObject> getChapters(Collection<String> chapterIds){
+		ArrayList<DBObject> ret = new ArrayList<DBObject>();
+		ArrayList<ObjectId> ids = new ArrayList<ObjectId>();
+		ArrayList<String> oldIds = new ArrayList<String>();
+		for(String chapterId : chapterIds){
+			if(ObjectId.isValid(chapterId)){
+				ids.add(new ObjectId(chapterId));
+			}else{
+				oldIds.add(chapterId);
+			}
+		}
+		if(ids.isEmpty() && oldIds.isEmpty()){
+			return ret;
+		}
+		
+		//Both are indexed so asking for both at once is still one trip
+		BasicDBObject query;
+		if(oldIds.isEmpty()){
+			query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+		}else if(ids.isEmpty()){
+			query = new BasicDBObject("oldId", new BasicDBObject("$in", oldIds));
+		}else{
+			BasicDBList or = new BasicDBList();
+			or.add(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+			or.add(new BasicDBObject("oldId", new BasicDBObject("$in", oldIds)));
+			query = new BasicDBObject("$or", or);
+		}
+		
+		long generation = ChapterCache.getInstance().getGeneration();
+		try{
+			this.initMongo();
+			DBCursor cur = db.getCollection("chapters").find(query);
+			try{
+				while(cur.hasNext()){
+					DBObject obj = cur.next();
+					ChapterCache.getInstance().put(obj, generation);
+					ret.add(obj);
+				}
+			}finally{
+				cur.close();
+			}
+		}finally{
+			this.deInitMongo();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the mongo ids for many ids with at most one query, see LegacyIdResolver.resolveAll
+	 * 
+	 * @param scope Must be either "content" or "chapters"
+	 * @param ids
+	 * @return map of the ids passed in to their mongo id, ids that could not be found are left out
+	 */
+	public Map<String, ObjectId> resolveIds(String scope, Collection<String> ids){
+		try{
+			this.initMongo();
+			return LegacyIdResolver.getInstance().resolveAll(db, scope, ids);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Gets a specific chapter as the raw BSON document mongo sent us
+	 * Nothing in the document is decoded, so it can be handed on as it is
+	 * 
+	 * @param chapterId
+	 * @param fields The fields to return, null or empty for the whole chapter
+	 * @return the BSON bytes of the chapter
+	 */
+	public byte[] getChapterBson(String chapterId, List<String> fields){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try{
+			writeChapterBson(chapterId, fields, out);
+		}catch(IOException e){
+			throw(new InternalErrorException(e.toString()));
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Writes a specific chapter as BSON straight to a stream, like a response body
+	 * 
+	 * @param chapterId
+	 * @param fields The fields to return, null or empty for the whole chapter
+	 * @param out
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public int writeChapterBson(String chapterId, List<String> fields, OutputStream out) throws IOException{
+		try{
+			this.initMongo();
+			return findLazyChapter(chapterId, fields).pipe(out);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Gets a specific chapter as JSON
+	 * The join _ids stay hashed ({"$oid" : ...}) the same as serializing getChapter
+	 * 
+	 * @note Writing JSON decodes every value, so unlike the BSON methods this is not a passthrough.
+	 * 		 The whole chapter comes from the ChapterCache when it is there, a projection always goes to mongo.
+	 * @param chapterId
+	 * @param fields The fields to return, null or empty for the whole chapter
+	 * @return
+	 */
+	public String getChapterJson(String chapterId, List<String> fields){
+		boolean whole = fields == null || fields.isEmpty();
+		DBObject chapter = whole ? ChapterCache.getInstance().get(chapterId) : null;
+		if(chapter == null){
+			long generation = ChapterCache.getInstance().getGeneration();
+			try{
+				this.initMongo();
+				BasicDBObject projection = new BasicDBObject();
+				if(!whole){
+					for(String field : fields){
+						projection.append(field, 1);
+					}
+				}
+				//Decoded in one pass, a lazy document would scan the BSON again for every field
+				chapter = db.getCollection("chapters").findOne(getChapterQuery(chapterId), projection);
+				if(chapter == null){
+					throw(new NotFoundException("That chapter could not be found"));
+				}
+				if(whole){
+					ChapterCache.getInstance().put(chapter, generation);
+				}
+			}finally{
+				this.deInitMongo();
+			}
+		}
+		StringBuilder json = new StringBuilder();
+		JSON.serialize(chapter, json);
+		return json.toString();
+	}
+	
+	//Finds a chapter without decoding it
+	//@Note: mongo needs to already be initialized
+	private LazyDBObject findLazyChapter(String chapterId, List<String> fields){
+		BasicDBObject projection = new BasicDBObject();
+		if(fields != null){
+			for(String field : fields){
+				projection.append(field, 1);
+			}
+		}
+		
+		DBCollection coll = db.getCollection("chapters");
+		DBCursor cur = coll.find(getChapterQuery(chapterId), projection).setDecoderFactory(LazyDBDecoder.FACTORY).limit(1);
+		try{
+			if(!cur.hasNext()){
+				throw(new NotFoundException("That chapter could not be found"));
+			}
+			return (LazyDBObject) cur.next();
+		}finally{
+			cur.close();
+		}
+	}
+	
+	/**
+	 * Gets everything joined to this chapter
+	 * 
+	 * Only the requested window of joins is pulled from mongo (with a $slice projection)
+	 * so the cost of a page depends on the page size and not on the size of the chapter.
+	 * Use getJoinCount to get the total number of joins for paging.
+	 * 
+	 * @param chapterId
+	 * @param start
+	 * @param count
+	 * @return
+	 */
+	public ArrayList<Map> getContentForAChapter(String chapterId, int start, int count,Boolean isAdmin){
+		return getContentForAChapter(chapterId, start, count, isAdmin, false);
+	}
+	
+	/**
+	 * Gets everything joined to this chapter, for a listing when listing is true
+	 * 
+	 * A listing leaves the body, users and costs of content out and has the "excerpt" of the content version instead.
+	 * Versions without an excerpt get one made from the start of their body, see ContentSummary.makeExcerpt.
+	 * Use getContentBodies to get the rest for the content that is opened.
+	 * 
+	 * A join whose lookup ran past the lookup timeout has only its join information and "incomplete" set to true.
+	 * 
+	 * @param chapterId
+	 * @param start
+	 * @param count
+	 * @param isAdmin
+	 * @param listing
+	 * @return
+	 */
+	public ArrayList<Map> getContentForAChapter(String chapterId, int start, int count, Boolean isAdmin, boolean listing){
+		//Nothing to page through
+		if(count <= 0 && start >= 0){
+			return new ArrayList<Map>();
+		}
+		
+		return getChapterView(chapterId, start, count, isAdmin, listing).getJoinMaps();
+	}
+	
+	/**
+	 * Gets a chapter and a window of what is joined to it, as a ChapterView
+	 * Each join has the summary of its content or chapter, unless that content isn't published or visible
+	 * 
+	 * This is what getContentForAChapter reads before it turns each join into a map
+	 * 
+	 * @param chapterId
+	 * @param start
+	 * @param count
+	 * @param isAdmin
+	 * @return
+	 */
+	public ChapterView getChapterView(String chapterId, int start, int count, Boolean isAdmin){
+		return getChapterView(chapterId, start, count, isAdmin, false);
+	}
+	
+	/**
+	 * Gets a chapter and a window of what is joined to it, for a listing when listing is true
+	 * See getContentForAChapter
+	 * 
+	 * @param chapterId
+	 * @param start
+	 * @param count
+	 * @param isAdmin
+	 * @param listing
+	 * @return
+	 */
+	public ChapterView getChapterView(String chapterId, int start, int count, Boolean isAdmin, boolean listing){
+		if(start < 0){
+			throw(new InternalErrorException("Start can not be negative."));
+		}
+		if(count <= 0){
+			throw(new InternalErrorException("Count has to be more than 0."));
+		}
+		
+		try{
+			this.initMongo();
+			ChapterView view = ChapterView.fromChapter(getChapterJoinWindow(chapterId, start, count));
+			
+			List<JoinEntry> toFind = view.getJoins();
+			//The summaries only have what a listing shows
+			if(denormalizedJoins && listing){
+				toFind = useJoinSummaries(toFind, isAdmin);
+			}
+			
+			//Because we can not filter on the sub document 
+			//we want to grab all the content and filter it out
+			//And as long as it actually has things joined
+			if(!toFind.isEmpty()){
+				findSummariesForJoins(toFind, isAdmin, listing);
+			}
+			return view;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Gets the total number of joins on a chapter without pulling the joins themselves
+	 * 
+	 * @param chapterId
+	 * @return the number of joins, 0 if the chapter has none
+	 */
+	public int getJoinCount(String chapterId){
+		Integer ret = null;
+		try{
+			this.initMongo();
+			BasicDBObject match = new BasicDBObject("$match", getChapterQuery(chapterId));
+			
+			//Let mongo count the joins so the array never comes over the wire
+			BasicDBList ifNull = new BasicDBList();
+			ifNull.add("$joins");
+			ifNull.add(new BasicDBList());
+			BasicDBObject size = new BasicDBObject("$size", new BasicDBObject("$ifNull", ifNull));
+			BasicDBObject project = new BasicDBObject("$project", new BasicDBObject("joinCount", size));
+			
+			DBCollection coll = db.getCollection("chapters");
+			AggregationOutput out = coll.aggregate(Arrays.<DBObject>asList(match, project));
+			for(DBObject obj : out.results()){
+				ret = ((Number) obj.get("joinCount")).intValue();
+			}
+		}catch(Exception e){
+			throw(new InternalErrorException(e.toString()));
+		}finally{
+			this.deInitMongo();
+		}
+		if(ret == null){
+			throw(new NotFoundException("That chapter could not be found"));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the body, users and costs of the newest published version of content, in one query
+	 * Goes with the listings from getContentForAChapter for the content that gets opened
+	 * 
+	 * @param contentIds The mongo ids or oldIds of the content
+	 * @param isAdmin
+	 * @return map of each content id passed in to its "body", "users" and "costs",
+	 * 		   content that couldn't be found or isn't published is left out
+	 */
+	public HashMap<String, Map> getContentBodies(List<String> contentIds, Boolean isAdmin){
+		HashMap<String, Map> ret = new HashMap<String, Map>();
+		if(contentIds.isEmpty()){
+			return ret;
+		}
+		
+		try{
+			this.initMongo();
+			Map<String, ObjectId> found = LegacyIdResolver.getInstance().resolveAll(db, "content", contentIds);
+			if(found.isEmpty()){
+				return ret;
+			}
+			
+			BasicDBObject query = new BasicDBObject("contentId", new BasicDBObject("$in", new ArrayList<ObjectId>(found.values())));
+			query.append("status", "Published");
+			if(!isAdmin){
+				query.append("type", new BasicDBObject("$ne", "questionpool"));
+			}
+			
+			BasicDBObject fields = new BasicDBObject("contentId", 1);
+			fields.append("body", 1);
+			fields.append("users", 1);
+			fields.append("costs", 1);
+			fields.append("_id", 0);
+			
+			HashMap<ObjectId, Map> bodies = new HashMap<ObjectId, Map>();
+			//Newest first so the first version we see for each content is the one we keep, the same one the listings show
+			DBCursor cur = db.getCollection("content_versions").find(query, fields).sort(new BasicDBObject("publishedDate", -1));
+			try{
+				while(cur.hasNext()){
+					DBObject obj = cur.next();
+					if(bodies.containsKey(obj.get("contentId"))){
+						continue;
+					}
+					Map m = obj.toMap();
+					m.remove("contentId");
+					bodies.put((ObjectId) obj.get("contentId"), m);
+				}
+			}finally{
+				cur.close();
+			}
+			
+			//Keyed on the ids that were passed in, legacy or not
+			for(String id : found.keySet()){
+				Map m = bodies.get(found.get(id));
+				if(m != null){
+					ret.put(id, m);
+				}
+			}
+			return ret;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Gets a page of only the visible things joined to this chapter, in join order
+	 * 
+	 * Unlike getContentForAChapter the joins are filtered before the page is cut, in one aggregation,
+	 * so every page has count items until the chapter runs out.
+	 * Content has to have a published version and chapters have to exist.
+	 * For non admins hidden joins, question pools and adminOnly chapters are left out as well.
+	 * 
+	 * @note Needs $lookup with a pipeline, so MongoDB 3.6 or newer
+	 * @param chapterId
+	 * @param start The number of visible joins to skip
+	 * @param count
+	 * @param isAdmin
+	 * @param listing true to get the excerpt instead of the body, users and costs, see getContentForAChapter
+	 * @return
+	 */
+	public ArrayList<Map> getVisibleContentForAChapter(String chapterId, int start, int count, Boolean isAdmin, boolean listing){
+		if(start < 0){
+			throw(new InternalErrorException("Start can not be negative."));
+		}
+		if(count <= 0){
+			throw(new InternalErrorException("Count has to be more than 0."));
+		}
+		
+		ArrayList<Map> ret = new ArrayList<Map>();
+		try{
+			this.initMongo();
+			DBCollection coll = db.getCollection("chapters");
+			
+			List<DBObject> pipeline = getVisibleJoinsPipeline(getChapterQuery(chapterId), null, isAdmin, listing);
+			pipeline.add(new BasicDBObject("$skip", start));
+			pipeline.add(new BasicDBObject("$limit", count));
+			
+			AggregationOptions options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).batchSize(count).allowDiskUse(true).build();
+			Cursor cur = coll.aggregate(pipeline, options);
+			try{
+				while(cur.hasNext()){
+					ret.add(getVisibleJoin(cur.next()).toMap());
+				}
+			}finally{
+				cur.close();
+			}
+			
+			//An empty page could also be a chapter that isn't there
+			if(ret.isEmpty() && coll.findOne(getChapterQuery(chapterId), new BasicDBObject("_id", 1)) == null){
+				throw(new NotFoundException("That chapter could not be found"));
+			}
+		}catch(NotFoundException e){
+			throw(e);
+		}catch(Exception e){
+			throw(new InternalErrorException(e.toString()));
+		}finally{
+			this.deInitMongo();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets a page of the visible things joined to this chapter, in join order
+	 * 
+	 * Works like getVisibleContentForAChapter, but each page carries on from the last join of the page before it
+	 * instead of counting from the start, so joins that are added or removed in front of it don't shift the pages.
+	 * The joins before the token are never looked up.
+	 * 
+	 * @note Needs $lookup with a pipeline, so MongoDB 3.6 or newer
+	 * @param chapterId
+	 * @param token The next token from the page before, null for the first page
+	 * @param count
+	 * @param isAdmin
+	 * @param listing true to get the excerpt instead of the body, users and costs, see getContentForAChapter
+	 * @return
+	 */
+	public ChapterPage getContentPage(String chapterId, String token, int count, Boolean isAdmin, boolean listing){
+		if(count <= 0){
+			throw(new InternalErrorException("Count has to be more than 0."));
+		}
+		
+		//The page starts right after the join in the token, or where it was if it has been removed
+		Object start = 0;
+		if(token != null){
+			BasicDBList indexOf = new BasicDBList();
+			indexOf.add("$joins._id");
+			indexOf.add(ChapterPage.getTokenJoinId(token));
+			BasicDBObject anchor = new BasicDBObject("$indexOfArray", indexOf);
+			
+			BasicDBList cond = new BasicDBList();
+			cond.add(new BasicDBObject("$gte", Arrays.asList(anchor, 0)));
+			cond.add(new BasicDBObject("$add", Arrays.asList(anchor, 1)));
+			cond.add(ChapterPage.getTokenIndex(token));
+			start = new BasicDBObject("$cond", cond);
+		}
+		
+		ArrayList<Map> items = new ArrayList<Map>();
+		String nextToken = null;
+		try{
+			this.initMongo();
+			DBCollection coll = db.getCollection("chapters");
+			
+			List<DBObject> pipeline = getVisibleJoinsPipeline(getChapterQuery(chapterId), start, isAdmin, listing);
+			//One extra to know whether there is another page
+			pipeline.add(new BasicDBObject("$limit", count + 1));
+			
+			AggregationOptions options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).batchSize(count + 1).allowDiskUse(true).build();
+			Cursor cur = coll.aggregate(pipeline, options);
+			try{
+				DBObject last = null;
+				while(cur.hasNext()){
+					DBObject obj = cur.next();
+					if(items.size() == count){
+						//There is more after the last one we kept
+						ObjectId lastId = (ObjectId) ((DBObject) last.get("joins")).get("_id");
+						int lastIndex = ((Number) last.get("offset")).intValue() + ((Number) last.get("index")).intValue();
+						nextToken = ChapterPage.getToken(lastId, lastIndex);
+						break;
+					}
+					items.add(getVisibleJoin(obj).toMap());
+					last = obj;
+				}
+			}finally{
+				cur.close();
+			}
+			
+			if(items.isEmpty() && coll.findOne(getChapterQuery(chapterId), new BasicDBObject("_id", 1)) == null){
+				throw(new NotFoundException("That chapter could not be found"));
+			}
+		}catch(NotFoundException e){
+			throw(e);
+		}catch(Exception e){
+			throw(new InternalErrorException(e.toString()));
+		}finally{
+			this.deInitMongo();
+		}
+		return new ChapterPage(items, nextToken);
+	}
+	
+	/**
+	 * The aggregation that turns a chapter into one document per visible join, in join order
+	 * Each document has "joins" (the join), "index" (where it is in the joins that were unwound),
+	 * "version" (the newest published version for content) and "chapter" (the joined chapter for chapters)
+	 * 
+	 * When start is set only the joins from there on are unwound and looked up,
+	 * and each document also has "offset" so that its place in the joins array is offset + index.
+	 * 
+	 * Every join that is unwound is looked up before the page is cut, since only then do we know whether it is visible.
+	 * The lookups only bring back the fields we show so each document stays small, but a page still costs more on a bigger chapter.
+	 * 
+	 * @param chapterQuery
+	 * @param start Where in the joins array to start, a number or an expression, null for the whole array
+	 * @param isAdmin
+	 * @param listing
+	 * @return
+	 */
+	private List<DBObject> getVisibleJoinsPipeline(DBObject chapterQuery, Object start, Boolean isAdmin, boolean listing){
+		ArrayList<DBObject> pipeline = new ArrayList<DBObject>();
+		pipeline.add(new BasicDBObject("$match", chapterQuery));
+		if(start == null){
+			pipeline.add(new BasicDBObject("$project", new BasicDBObject("joins", 1)));
+		}else{
+			BasicDBObject offset = new BasicDBObject("joins", 1);
+			offset.append("offset", new BasicDBObject("$max", Arrays.asList(start, 0)));
+			pipeline.add(new BasicDBObject("$project", offset));
+			
+			//Cut off everything before the start so it is never unwound
+			BasicDBList slice = new BasicDBList();
+			slice.add("$joins");
+			slice.add("$offset");
+			slice.add(Integer.MAX_VALUE);
+			BasicDBObject window = new BasicDBObject("joins", new BasicDBObject("$slice", slice));
+			window.append("offset", 1);
+			pipeline.add(new BasicDBObject("$project", window));
+		}
+		
+		BasicDBObject unwind = new BasicDBObject("path", "$joins");
+		unwind.append("includeArrayIndex", "index");
+		pipeline.add(new BasicDBObject("$unwind", unwind));
+		
+		if(!isAdmin){
+			pipeline.add(new BasicDBObject("$match", new BasicDBObject("joins.hide", new BasicDBObject("$ne", "1"))));
+		}
+		
+		//Each lookup filters and projects on the other side, so only the one version or chapter we show comes back
+		//Both go through an index, the one that doesn't match the scope just finds nothing
+		BasicDBObject versionMatch = new BasicDBObject("$expr", new BasicDBObject("$eq", Arrays.asList("$contentId", "$$joinId")));
+		versionMatch.append("status", "Published");
+		if(!isAdmin){
+			versionMatch.append("type", new BasicDBObject("$ne", "questionpool"));
+		}
+		//The same fields findContentVersions gets, from the newest published version
+		BasicDBObject versionFields = new BasicDBObject("contentId", 1);
+		versionFields.append("title", 1);
+		versionFields.append("type", 1);
+		versionFields.append("publishedDate", 1);
+		if(listing){
+			versionFields.append("excerpt", 1);
+			versionFields.append("excerptSource", getExcerptSource());
+		}else{
+			versionFields.append("body", 1);
+			versionFields.append("users", 1);
+			versionFields.append("costs", 1);
+		}
+		versionFields.append("_id", 0);
+		BasicDBList versionPipeline = new BasicDBList();
+		versionPipeline.add(new BasicDBObject("$match", versionMatch));
+		versionPipeline.add(new BasicDBObject("$sort", new BasicDBObject("publishedDate", -1)));
+		versionPipeline.add(new BasicDBObject("$limit", 1));
+		versionPipeline.add(new BasicDBObject("$project", versionFields));
+		
+		BasicDBObject versionLookup = new BasicDBObject("from", "content_versions");
+		versionLookup.append("let", new BasicDBObject("joinId", "$joins._id"));
+		versionLookup.append("pipeline", versionPipeline);
+		versionLookup.append("as", "version");
+		pipeline.add(new BasicDBObject("$lookup", versionLookup));
+		
+		BasicDBObject chapterMatch = new BasicDBObject("$expr", new BasicDBObject("$eq", Arrays.asList("$_id", "$$joinId")));
+		if(!isAdmin){
+			chapterMatch.append("adminOnly", new BasicDBObject("$ne", "1"));
+		}
+		//The same fields findJoinedChapters gets
+		BasicDBObject chapterFields = new BasicDBObject("name", 1);
+		chapterFields.append("shortName", 1);
+		chapterFields.append("lcpCopyOfChapter", 1);
+		chapterFields.append("lcpLiveUpdates", 1);
+		chapterFields.append("imageId", 1);
+		chapterFields.append("joins.scope", 1);
+		BasicDBList chapterPipeline = new BasicDBList();
+		chapterPipeline.add(new BasicDBObject("$match", chapterMatch));
+		chapterPipeline.add(new BasicDBObject("$project", chapterFields));
+		
+		BasicDBObject chapterLookup = new BasicDBObject("from", "chapters");
+		chapterLookup.append("let", new BasicDBObject("joinId", "$joins._id"));
+		chapterLookup.append("pipeline", chapterPipeline);
+		chapterLookup.append("as", "chapter");
+		pipeline.add(new BasicDBObject("$lookup", chapterLookup));
+		
+		BasicDBObject contentVisible = new BasicDBObject("joins.scope", "content");
+		contentVisible.append("version.0", new BasicDBObject("$exists", true));
+		BasicDBObject chapterVisible = new BasicDBObject("joins.scope", "chapters");
+		chapterVisible.append("chapter.0", new BasicDBObject("$exists", true));
+		BasicDBList visible = new BasicDBList();
+		visible.add(contentVisible);
+		visible.add(chapterVisible);
+		pipeline.add(new BasicDBObject("$match", new BasicDBObject("$or", visible)));
+		
+		return pipeline;
+	}
+	
+	//returns the expression for the "excerptSource" of a content version
+	//Only the start of the body, and only when there is no excerpt to show
+	private BasicDBObject getExcerptSource(){
+		BasicDBObject bodyStart = new BasicDBObject("$cond", Arrays.asList(
+				new BasicDBObject("$eq", Arrays.asList(new BasicDBObject("$type", "$body"), "string")),
+				new BasicDBObject("$substrCP", Arrays.asList("$body", 0, ContentSummary.excerptSourceLength)),
+				"$$REMOVE"));
+		return new BasicDBObject("$cond", Arrays.asList(
+				new BasicDBObject("$eq", Arrays.asList(new BasicDBObject("$ifNull", Arrays.asList("$excerpt", null)), null)),
+				bodyStart,
+				"$$REMOVE"));
+	}
+	
+	//Turns a document from getVisibleJoinsPipeline into a join with its summary
+	private JoinEntry getVisibleJoin(DBObject obj){
+		JoinEntry join = new JoinEntry((DBObject) obj.get("joins"));
+		List found = (List) obj.get(join.isChapter() ? "chapter" : "version");
+		if(found != null && !found.isEmpty()){
+			DBObject first = (DBObject) found.get(0);
+			join.setSummary(join.isChapter() ? ContentSummary.fromChapter(first) : ContentSummary.fromContentVersion(first));
+		}
+		return join;
+	}
+	
+	/**
+	 * Gets a chapter with only a window of its joins
+	 * 
+	 * @note mongo needs to already be initialized
+	 * @param chapterId
+	 * @param start
+	 * @param count
+	 * @return DBObject for the chapter with the joins between start and start + count
+	 */
+	private DBObject getChapterJoinWindow(String chapterId, int start, int count){
+		//If we already have the whole chapter we can cut the window out of it ourselves
+		DBObject cached = ChapterCache.getInstance().get(chapterId);
+		if(cached != null){
+			if(cached.containsField("joins")){
+				List joins = (List) cached.get("joins");
+				BasicDBList window = new BasicDBList();
+				window.addAll(joins.subList(Math.min(start, joins.size()), Math.min(start + count, joins.size())));
+				cached.put("joins", window);
+			}
+			return cached;
+		}
+		
+		BasicDBList slice = new BasicDBList();
+		slice.add(start);
+		slice.add(count);
+		
+		//A $slice projection still returns all of the other fields
+		BasicDBObject fields = new BasicDBObject("joins", new BasicDBObject("$slice", slice));
+		
+		DBCollection coll = db.getCollection("chapters");
+		DBObject obj = coll.findOne(getChapterQuery(chapterId), fields);
+		if(obj==null){
+			throw(new NotFoundException("That chapter could not be found"));
+		}
+		return obj;
+	}
+	
+	/**
+	 * Fills in the joins from the summaries kept on them, with the same filters as the lookups
+	 * 
+	 * @param joins
+	 * @param isAdmin
+	 * @return the joins that don't have a summary yet and still need to be looked up
+	 */
+	private List<JoinEntry> useJoinSummaries(List<JoinEntry> joins, Boolean isAdmin){
+		ArrayList<JoinEntry> toFind = new ArrayList<JoinEntry>();
+		for(JoinEntry join : joins){
+			DBObject summary = join.getJoinSummary();
+			if(summary == null){
+				toFind.add(join);
+			}else if(summary.keySet().isEmpty()){
+				//Nothing published
+				continue;
+			}else if(!isAdmin && join.isChapter() && "1".equals(summary.get("adminOnly"))){
+				continue;
+			}else if(!isAdmin && !join.isChapter() && "questionpool".equals(summary.get("type"))){
+				continue;
+			}else{
+				join.setSummary(ContentSummary.fromJoinSummary(join.getId(), summary));
+			}
+		}
+		return toFind;
+	}
+	
+	/**
+	 * Looks up the content and chapters for a list of joins
+	 * and sets the summary on each join that was found
+	 * 
+	 * @note mongo needs to already be initialized
+	 * @param joins
+	 * @param isAdmin
+	 * @param listing true to get the excerpt instead of the body, users and costs
+	 */
+	private void findSummariesForJoins(List<JoinEntry> joins, final Boolean isAdmin, final boolean listing){
+		try{
+			//We build out list of ids for our two queries.
+			//One with chapterIds one with contentIds
+			final ArrayList<ObjectId> chapterIds = new ArrayList<ObjectId>();
+			final ArrayList<ObjectId> contentIds = new ArrayList<ObjectId>();
+			HashMap<String, JoinEntry> joinsById = new HashMap<String, JoinEntry>();
+			
+			for(JoinEntry join : joins){
+				if(join.isChapter()){
+					chapterIds.add(new ObjectId(join.getId()));
+				}else{
+					contentIds.add(new ObjectId(join.getId()));
+				}
+				joinsById.put(join.getId(), join);
+			}
+			
+			//Hold on to the collections so the lookups don't depend on db after we return
+			final DBCollection contentColl = db.getCollection("content_versions");
+			final DBCollection chaptersColl = db.getCollection("chapters");
+			
+			Lookup contentFound = new Lookup();
+			Lookup chaptersFound = new Lookup();
+			
+			//One deadline for both lookups
+			final long deadline = getLookupDeadline();
+			if(concurrentLookups && !contentIds.isEmpty() && !chapterIds.isEmpty()){
+				//The two lookups don't depend on each other so send them both at once
+				Future<Lookup> contentFuture = lookupExecutor.submit(new Callable<Lookup>(){
+					public Lookup call(){
+						return findContentVersions(contentColl, contentIds, isAdmin, listing, deadline);
+					}
+				});
+				Future<Lookup> chaptersFuture = lookupExecutor.submit(new Callable<Lookup>(){
+					public Lookup call(){
+						return findJoinedChapters(chaptersColl, chapterIds, isAdmin, deadline);
+					}
+				});
+				
+				contentFound = waitForLookup(contentFuture, deadline);
+				chaptersFound = waitForLookup(chaptersFuture, deadline);
+			}else{
+				//No reason to go to mongo for an empty list of ids
+				if(!contentIds.isEmpty()){
+					contentFound = findContentVersions(contentColl, contentIds, isAdmin, listing, deadline);
+				}
+				if(!chapterIds.isEmpty()){
+					chaptersFound = findJoinedChapters(chaptersColl, chapterIds, isAdmin, deadline);
+				}
+			}
+			
+			//Lets loop through the content results
+			for(DBObject obj : contentFound.found){
+				joinsById.get(obj.get("contentId").toString()).setSummary(ContentSummary.fromContentVersion(obj));
+			}
+			
+			//Now do the same thing for chapters
+			for(DBObject obj : chaptersFound.found){
+				joinsById.get(obj.get("_id").toString()).setSummary(ContentSummary.fromChapter(obj));
+			}
+			
+			//The joins we ran out of time to look up aren't just unpublished, so say so
+			for(JoinEntry join : joins){
+				Lookup lookup = join.isChapter() ? chaptersFound : contentFound;
+				if(lookup.timedOut && join.getSummary() == null){
+					join.setIncomplete(true);
+				}
+			}
+		}catch(Exception e){
+			throw(new InternalErrorException(e.toString()));
+		}
+	}
+	
+	//returns the map for a piece of content joined to a chapter
+	//the content version with the join information we already have for it on top
+	private Map getContentItem(DBObject version, DBObject join){
+		JoinEntry entry = new JoinEntry(join);
+		entry.setSummary(ContentSummary.fromContentVersion(version));
+		return entry.toMap();
+	}
+	
+	//returns the map for a chapter joined to a chapter
+	//the chapter with the join information we already have for it on top
+	private Map getChapterItem(DBObject chapter, DBObject join){
+		JoinEntry entry = new JoinEntry(join);
+		entry.setSummary(ContentSummary.fromChapter(chapter));
+		return entry.toMap();
+	}
+	
+	/**
+	 * Gets the content for a chapter and every chapter under it, as a table of contents
+	 * 
+	 * The tree is loaded one level at a time. Every chapter on a level is fetched with one query
+	 * and all the content for a level with another, so it takes two queries per level instead of per chapter.
+	 * Each chapter in the tree has a "children" list with what is joined to it, in join order.
+	 * A chapter that shows up in the tree more than once only has its children loaded the first time,
+	 * so a chapter joined into its own subtree can't loop.
+	 * 
+	 * @param chapterId
+	 * @param maxDepth How many levels under this chapter to load
+	 * @param maxNodes The most content and chapters to load, past that the root has "truncated" set to true
+	 * @param isAdmin
+	 * @note The lookup timeout is one deadline for the whole tree. A child that ran out of time has "incomplete" set to true, and so does the root.
+	 * @return Map for the chapter with its "children"
+	 */
+	public Map getChapterTree(String chapterId, int maxDepth, int maxNodes, Boolean isAdmin){
+		try{
+			this.initMongo();
+			DBCollection coll = db.getCollection("chapters");
+			DBObject root = coll.findOne(getChapterQuery(chapterId), getTreeFields());
+			if(root == null){
+				throw(new NotFoundException("That chapter could not be found"));
+			}
+			
+			Map tree = getChapterItem(root, new BasicDBObject());
+			tree.remove("joins");
+			
+			HashSet<String> visited = new HashSet<String>();
+			visited.add(root.get("_id").toString());
+			int nodes = 0;
+			boolean truncated = false;
+			boolean incomplete = false;
+			long deadline = getLookupDeadline();
+			
+			//The chapters on the current level along with the node each of them fills in
+			ArrayList<DBObject> level = new ArrayList<DBObject>();
+			ArrayList<Map> levelNodes = new ArrayList<Map>();
+			level.add(root);
+			levelNodes.add(tree);
+			
+			for(int depth = 0; depth < maxDepth && !level.isEmpty(); depth++){
+				ArrayList<ObjectId> chapterIds = new ArrayList<ObjectId>();
+				ArrayList<ObjectId> contentIds = new ArrayList<ObjectId>();
+				//The joins we are going to load for each chapter on this level
+				ArrayList<ArrayList<DBObject>> levelJoins = new ArrayList<ArrayList<DBObject>>();
+				
+				for(DBObject chapter : level){
+					ArrayList<DBObject> joins = new ArrayList<DBObject>();
+					levelJoins.add(joins);
+					if(!chapter.containsField("joins")){
+						continue;
+					}
+					for(Object o : (List) chapter.get("joins")){
+						DBObject C = (DBObject) o;
+						if(!C.containsField("_id") || !C.containsField("scope")){
+							continue;
+						}
+						if(nodes >= maxNodes){
+							truncated = true;
+							break;
+						}
+						nodes++;
+						joins.add(C);
+						ObjectId _id = new ObjectId(C.get("_id").toString());
+						if(C.get("scope").equals("chapters")){
+							chapterIds.add(_id);
+						}else{
+							contentIds.add(_id);
+						}
+					}
+				}
+				
+				//One query for all the content on this level and one for all the chapters
+				HashMap<String, DBObject> contentFound = new HashMap<String, DBObject>();
+				boolean contentTimedOut = false;
+				if(!contentIds.isEmpty()){
+					Lookup lookup = findContentVersions(db.getCollection("content_versions"), contentIds, isAdmin, false, deadline);
+					for(DBObject obj : lookup.found){
+						contentFound.put(obj.get("contentId").toString(), obj);
+					}
+					contentTimedOut = lookup.timedOut;
+				}
+				HashMap<String, DBObject> chaptersFound = new HashMap<String, DBObject>();
+				boolean chaptersTimedOut = false;
+				if(!chapterIds.isEmpty()){
+					BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", chapterIds));
+					if(!isAdmin){
+						query.append("adminOnly", new BasicDBObject("$ne","1"));
+					}
+					Lookup lookup = drainLookup(coll.find(query, getTreeFields()), deadline);
+					for(DBObject obj : lookup.found){
+						chaptersFound.put(obj.get("_id").toString(), obj);
+					}
+					chaptersTimedOut = lookup.timedOut;
+				}
+				incomplete = incomplete || contentTimedOut || chaptersTimedOut;
+				
+				//Now fill in the children in join order and line up the next level
+				ArrayList<DBObject> nextLevel = new ArrayList<DBObject>();
+				ArrayList<Map> nextLevelNodes = new ArrayList<Map>();
+				for(int i = 0; i < level.size(); i++){
+					ArrayList<Map> children = new ArrayList<Map>();
+					for(DBObject C : levelJoins.get(i)){
+						String _id = C.get("_id").toString();
+						JoinEntry entry = new JoinEntry(C);
+						entry.setIncomplete(C.get("scope").equals("chapters") ? chaptersTimedOut : contentTimedOut);
+						Map child = entry.toMap();
+						if(C.get("scope").equals("chapters")){
+							DBObject found = chaptersFound.get(_id);
+							if(found != null){
+								child = getChapterItem(found, C);
+								child.remove("joins");
+								if(visited.add(_id)){
+									nextLevel.add(found);
+									nextLevelNodes.add(child);
+								}
+							}
+						}else if(contentFound.containsKey(_id)){
+							child = getContentItem(contentFound.get(_id), C);
+						}
+						children.add(child);
+					}
+					levelNodes.get(i).put("children", children);
+				}
+				
+				level = nextLevel;
+				levelNodes = nextLevelNodes;
+			}
+			
+			tree.put("truncated", truncated);
+			tree.put("incomplete", incomplete);
+			return tree;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	//returns the fields we need for a chapter in a table of contents
+	private BasicDBObject getTreeFields(){
+		BasicDBObject fields = new BasicDBObject("name", 1);
+		fields.append("shortName", 1);
+		fields.append("lcpCopyOfChapter", 1);
+		fields.append("lcpLiveUpdates", 1);
+		fields.append("imageId", 1);
+		fields.append("joins", 1);
+		return fields;
+	}
+	
+	/**
+	 * Gets the newest published version of each piece of content joined to a chapter
+	 * 
+	 * It is one aggregation that keeps the newest version of each piece of content,
+	 * and for a listing only sends the start of the body of the versions that have no excerpt.
+	 * 
+	 * @param coll the content_versions collection
+	 * @param contentIds
+	 * @param isAdmin
+	 * @param listing true to get the excerpt instead of the body, users and costs
+	 * @param deadline from getLookupDeadline
+	 * @return
+	 */
+	private Lookup findContentVersions(DBCollection coll, ArrayList<ObjectId> contentIds, Boolean isAdmin, boolean listing, long deadline){
+		BasicDBObject inQuery = new BasicDBObject("$in",  contentIds);
+		BasicDBObject query = new BasicDBObject("contentId" , inQuery);
+		query.append("status", "Published");
+		
+		//Remove question pools for non admin
+		//because only administrators can view those
+		if(!isAdmin){
+			query.append("type", new BasicDBObject("$ne", "questionpool"));
+		}
+		
+		//For we only need these couple of fields that the content contains, from the newest version
+		BasicDBObject group = new BasicDBObject("_id", "$contentId");
+		BasicDBObject fields = new BasicDBObject("_id", 0);
+		fields.append("contentId", "$_id");
+		ArrayList<String> names = new ArrayList<String>(Arrays.asList("title", "type", "publishedDate"));
+		if(listing){
+			names.add("excerpt");
+			group.append("excerptSource", new BasicDBObject("$first", getExcerptSource()));
+			fields.append("excerptSource", 1);
+		}else{
+			names.addAll(Arrays.asList("body", "users", "costs"));
+		}
+		for(String name : names){
+			group.append(name, new BasicDBObject("$first", "$" + name));
+			fields.append(name, 1);
+		}
+		
+		List<DBObject> pipeline = new ArrayList<DBObject>();
+		pipeline.add(new BasicDBObject("$match", query));
+		//Newest first so we keep the same version getContentBodies does
+		pipeline.add(new BasicDBObject("$sort", new BasicDBObject("publishedDate", -1)));
+		pipeline.add(new BasicDBObject("$group", group));
+		pipeline.add(new BasicDBObject("$project", fields));
+		return drainLookup(coll, pipeline, deadline);
+	}
+	
+	/**
+	 * Gets the chapters joined to a chapter
+	 * 
+	 * @param coll the chapters collection
+	 * @param chapterIds
+	 * @param isAdmin
+	 * @param deadline from getLookupDeadline
+	 * @return
+	 */
+	private Lookup findJoinedChapters(DBCollection coll, ArrayList<ObjectId> chapterIds, Boolean isAdmin, long deadline){
+		BasicDBObject inQuery = new BasicDBObject("$in",  chapterIds);
+		BasicDBObject query = new BasicDBObject("_id" , inQuery);
+		
+		if(!isAdmin){
+			query.append("adminOnly", new BasicDBObject("$ne","1"));
+		}
+		
+		BasicDBObject fields = new BasicDBObject("name", 1);
+		fields.append("shortName", 1);
+		fields.append("lcpCopyOfChapter", 1);
+		fields.append("lcpLiveUpdates", 1);
+		fields.append("imageId", 1);
+		fields.append("joins.scope", 1);
+		
+		return drainLookup(coll.find(query,fields), deadline);
+	}
+	
+	//What a lookup found, and whether it ran out of time before it found everything
+	private static class Lookup {
+		private final ArrayList<DBObject> found = new ArrayList<DBObject>();
+		private boolean timedOut = false;
+	}
+	
+	//returns when the lookups that start now have to be done by, 0 if there is no lookup timeout
+	private long getLookupDeadline(){
+		return lookupTimeout > 0 ? System.currentTimeMillis() + lookupTimeout : 0;
+	}
+	
+	//Reads a lookup cursor, letting mongo give up on it once the deadline has passed
+	private Lookup drainLookup(DBCursor cur, long deadline){
+		Lookup ret = new Lookup();
+		try{
+			if(deadline > 0){
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0){
+					//An earlier lookup used up all the time
+					ret.timedOut = true;
+					return ret;
+				}
+				cur.maxTime(remaining, TimeUnit.MILLISECONDS);
+			}
+			readLookup(cur, ret);
+		}finally{
+			cur.close();
+		}
+		return ret;
+	}
+	
+	//Runs a lookup aggregation, letting mongo give up on it once the deadline has passed
+	private Lookup drainLookup(DBCollection coll, List<DBObject> pipeline, long deadline){
+		Lookup ret = new Lookup();
+		AggregationOptions.Builder options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).allowDiskUse(true);
+		if(deadline > 0){
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0){
+				//An earlier lookup used up all the time
+				ret.timedOut = true;
+				return ret;
+			}
+			options.maxTime(remaining, TimeUnit.MILLISECONDS);
+		}
+		Cursor cur = null;
+		try{
+			cur = coll.aggregate(pipeline, options.build());
+			readLookup(cur, ret);
+		}catch(MongoExecutionTimeoutException e){
+			//It can run out of time before the first batch comes back
+			ret.timedOut = true;
+		}finally{
+			if(cur != null){
+				cur.close();
+			}
+		}
+		return ret;
+	}
+	
+	//Reads what a lookup found until it runs out of time
+	private void readLookup(Iterator<DBObject> cur, Lookup ret){
+		try{
+			while(cur.hasNext()){
+				ret.found.add(cur.next());
+			}
+		}catch(MongoExecutionTimeoutException e){
+			//Same as running out of time waiting on it, the rest of the joins only have their join information
+			ret.timedOut = true;
+		}
+	}
+	
+	//Waits for a lookup until the deadline
+	//If it doesn't finish in time we give up on it and return nothing so the joins only have their join information
+	private Lookup waitForLookup(Future<Lookup> lookup, long deadline) throws InterruptedException, ExecutionException{
+		if(deadline <= 0){
+			return lookup.get();
+		}
+		try{
+			return lookup.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+		}catch(TimeoutException e){
+			lookup.cancel(true);
+			Lookup ret = new Lookup();
+			ret.timedOut = true;
+			return ret;
+		}
+	}
+	
+	/**
+	 * Changes the order of the joins for a chapter
+	 * 
+	 * Will put joins in the order they are in the the chaptersList
+	 * 
+	 * @param chapterId
+	 * @param chaptersList ArrayList of Maps that contain : "scope" and "scopeId" for each chapter, in the intended order
+	 * @return boolean
+	 * @throws UnresolvedIdsException if any of the legacy ids in the chaptersList could not be found
+	 * @throws ChapterConflictException if the chapter kept being changed while we were writing the new order
+	 */
+	public boolean changeJoinOrder(String chapterId, ArrayList<Map> chaptersList){
+		//As long as we are actually updating
+		if(chaptersList.size() == 0){
+			throw(new InternalErrorException("A List of Ids is required."));
+		}
+		
+		try{
+			this.initMongo();
+			ObjectId id = getChapterObjectId(chapterId);
+			final ArrayList<String> ids = resolveJoinOrder(chaptersList);
+			if(ids == null){
+				return false;
+			}
+			
+			//Put the joins the chapter has when we write in the new order,
+			//so a join added or removed while we were working isn't lost or put back
+			return rewriteJoins(id, new JoinsRewrite(){
+				public BasicDBList rewrite(BasicDBList current){
+					//Because we can not filter on the sub document 
+					//we want to grab all the content and filter it out
+					if(current.isEmpty()){
+						return null;
+					}
+					return orderJoins(current, ids);
+				}
+			});
+		}catch(NotFoundException e){
+			throw(e);
+		}catch(ChapterConflictException e){
+			throw(e);
+		}catch(Exception e){
+			e.printStackTrace();
+			return false;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Reorders the joins of a chapter and edits some of them in one write
+	 * Used by JoinWriteCoalescer to write everything that was queued up for a chapter at once
+	 * 
+	 * @param chapterId
+	 * @param chaptersList The new order like changeJoinOrder takes, or null to leave the order alone
+	 * @param edits Changes to joins that are already on the chapter, like addContentToChapter takes
+	 * @return true if the chapter was written, false if there was nothing to write
+	 * @throws UnresolvedIdsException if any of the legacy ids could not be found
+	 */
+	boolean applyJoinChanges(String chapterId, ArrayList<Map> chaptersList, Collection<ChapterJoin> edits){
+		try{
+			this.initMongo();
+			final ObjectId id = getChapterObjectId(chapterId);
+			
+			final ArrayList<String> ids = chaptersList == null ? null : resolveJoinOrder(chaptersList);
+			if(chaptersList != null && ids == null){
+				throw(new InternalErrorException("Scope must be either content or chapters."));
+			}
+			
+			//Resolve the edits the same way, keyed on the mongo id of the join
+			ArrayList<String> legacyChapterIds = new ArrayList<String>();
+			ArrayList<String> legacyContentIds = new ArrayList<String>();
+			for(ChapterJoin edit : edits){
+				if(edit.getScope().equals("chapters")){
+					legacyChapterIds.add(edit.getScopeId());
+				}else{
+					legacyContentIds.add(edit.getScopeId());
+				}
+			}
+			Map<String, ObjectId> chapterIdMap = LegacyIdResolver.getInstance().resolveAll(db, "chapters", legacyChapterIds);
+			Map<String, ObjectId> contentIdMap = LegacyIdResolver.getInstance().resolveAll(db, "content", legacyContentIds);
+			final HashMap<String, ChapterJoin> editsById = new HashMap<String, ChapterJoin>();
+			for(ChapterJoin edit : edits){
+				ObjectId found = edit.getScope().equals("chapters") ? chapterIdMap.get(edit.getScopeId()) : contentIdMap.get(edit.getScopeId());
+				if(found != null){
+					editsById.put(found.toString(), edit);
+				}
+			}
+			
+			if(ids == null && editsById.isEmpty()){
+				return false;
+			}
+			
+			boolean written = rewriteJoins(id, new JoinsRewrite(){
+				public BasicDBList rewrite(BasicDBList current){
+					if(current.isEmpty()){
+						return null;
+					}
+					BasicDBList joins = ids == null ? current : orderJoins(current, ids);
+					for(Object o : joins){
+						DBObject join = (DBObject) o;
+						Object joinId = join.get("_id");
+						if(joinId != null && editsById.containsKey(joinId.toString())){
+							applyJoinEdit(join, editsById.get(joinId.toString()));
+						}
+					}
+					return joins;
+				}
+			});
+			
+			//An edit to lcpedFrom can change which chapter is the parent
+			if(written){
+				for(String joinId : editsById.keySet()){
+					ChapterJoin edit = editsById.get(joinId);
+					if(edit.getScope().equals("chapters")){
+						ChapterHierarchy.getInstance().addJoin(id, new ObjectId(joinId), edit.getLcpedFrom().length() > 0);
+					}
+				}
+			}
+			return written;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	//Resolves the scopeIds of a new join order to mongo ids, in the same order
+	//returns null if a scope isn't "content" or "chapters"
+	//@Note: mongo needs to already be initialized
+	private ArrayList<String> resolveJoinOrder(ArrayList<Map> chaptersList){
+		//Group the legacy ids by scope so each scope only takes one query to resolve
+		ArrayList<String> legacyChapterIds = new ArrayList<String>();
+		ArrayList<String> legacyContentIds = new ArrayList<String>();
+		for(Map m : chaptersList){
+			if(m.containsKey("scope") && m.containsKey("scopeId")){
+				String scopeId = m.get("scopeId").toString();
+				String scope = m.get("scope").toString();
+				if(!ObjectId.isValid(scopeId)){
+					if(scope.equals("chapters")){
+						legacyChapterIds.add(scopeId);
+					}else if(scope.equals("content")){
+						legacyContentIds.add(scopeId);
+					}else{
+						return null;
+					}
+				}
+			}
+		}
+		Map<String, ObjectId> chapterIdMap = LegacyIdResolver.getInstance().resolveAll(db, "chapters", legacyChapterIds);
+		Map<String, ObjectId> contentIdMap = LegacyIdResolver.getInstance().resolveAll(db, "content", legacyContentIds);
+		
+		ArrayList<String> ids = new ArrayList<String>();
+		LinkedHashMap<String, List<String>> missing = new LinkedHashMap<String, List<String>>();
+		
+		//Loop through the array that contains the new order
+		for(Map m : chaptersList){
+			if(m.containsKey("scope") && m.containsKey("scopeId")){
+				String scopeId = m.get("scopeId").toString();
+				String scope = m.get("scope").toString();
+				
+				//If this is actually a mongoId lets make it one
+				if(ObjectId.isValid(scopeId)){
+					ids.add(scopeId);
+				}else{
+					ObjectId found = scope.equals("chapters") ? chapterIdMap.get(scopeId) : contentIdMap.get(scopeId);
+					if(found != null){
+						ids.add(found.toString());
+					}else{
+						if(!missing.containsKey(scope)){
+							missing.put(scope, new ArrayList<String>());
+						}
+						missing.get(scope).add(scopeId);
+					}
+				}
+			}
+		}
+		
+		//Don't reorder anything unless we know where everything goes
+		if(!missing.isEmpty()){
+			throw(new UnresolvedIdsException(missing));
+		}
+		return ids;
+	}
+	
+	//Puts the joins in the order of the ids, the joins that aren't in the ids go on the end
+	//Ids that aren't on the chapter are left out
+	private static BasicDBList orderJoins(BasicDBList current, List<String> ids){
+		LinkedHashMap<String, Object> orderedIds = new LinkedHashMap<String, Object>();
+		for(String id : ids){
+			//To maintain the order of all the ids
+			orderedIds.put(id, null);
+		}
+		for(Object o : current){
+			DBObject join = (DBObject) o;
+			if(join.containsField("_id")){
+				orderedIds.put(join.get("_id").toString(), join);
+			}
+		}
+		
+		//Throw in the join information in the new order for the mongo query
+		BasicDBList joins = new BasicDBList();
+		for(Object join : orderedIds.values()){
+			if(join != null){
+				joins.add(join);
+			}
+		}
+		return joins;
+	}
+	
+	//Makes the same changes to a join in memory that getJoinUpdate makes in mongo
+	private static void applyJoinEdit(DBObject join, ChapterJoin edit){
+		if(!edit.getScope().equals("")){
+			join.put("scope", edit.getScope());
+		}
+		if(!edit.getJoinType().equals("")){
+			join.put("joinType", edit.getJoinType());
+		}
+		applyJoinFlag(join, "featured", edit.getFeatured());
+		applyJoinFlag(join, "hide", edit.getHide());
+		applyJoinFlag(join, "isLCP", edit.getIsLCP());
+		if(edit.getLcpedFrom().length() > 0){
+			join.put("lcpedFrom", edit.getLcpedFrom());
+		}else{
+			join.removeField("lcpedFrom");
+		}
+	}
+	
+	private static void applyJoinFlag(DBObject join, String field, String value){
+		if(value.equals("1")){
+			join.put(field, "1");
+		}else if(value.equals("0")){
+			join.removeField(field);
+		}
+	}
+	
+	/**
+	 * Moves one join on a chapter to a new position
+	 * 
+	 * @param chapterId
+	 * @param scopeId The mongo id of the join to move
+	 * @param toIndex Where the join should end up, past the end puts it last
+	 * @return true if the join was moved, false if it isn't on the chapter
+	 * @throws ChapterConflictException if the chapter kept being changed while we were moving the join
+	 */
+	public boolean moveJoin(String chapterId, final String scopeId, final int toIndex){
+		return reorderJoins(chapterId, new JoinsReorder(){
+			public List<String> reorder(ArrayList<String> current){
+				if(!current.contains(scopeId)){
+					return null;
+				}
+				ArrayList<String> newOrder = new ArrayList<String>(current);
+				newOrder.remove(scopeId);
+				newOrder.add(Math.max(0, Math.min(toIndex, newOrder.size())), scopeId);
+				return newOrder;
+			}
+		});
+	}
+	
+	/**
+	 * Moves one join on a chapter to right before another join
+	 * 
+	 * @param chapterId
+	 * @param scopeId The mongo id of the join to move
+	 * @param beforeId The mongo id of the join it should go in front of
+	 * @return true if the join was moved, false if either join isn't on the chapter
+	 */
+	public boolean moveJoinBefore(String chapterId, String scopeId, String beforeId){
+		return moveJoinNextTo(chapterId, scopeId, beforeId, 0);
+	}
+	
+	/**
+	 * Moves one join on a chapter to right after another join
+	 * 
+	 * @param chapterId
+	 * @param scopeId The mongo id of the join to move
+	 * @param afterId The mongo id of the join it should go behind
+	 * @return true if the join was moved, false if either join isn't on the chapter
+	 */
+	public boolean moveJoinAfter(String chapterId, String scopeId, String afterId){
+		return moveJoinNextTo(chapterId, scopeId, afterId, 1);
+	}
+	
+	/**
+	 * Changes the order of the joins for a chapter from one order to another
+	 * 
+	 * The joins array is rewritten in one write, and only if nobody else has written to the joins since they were read.
+	 * Pulling out only the joins that move and pushing them back with $position would take at least two writes,
+	 * and mongo replicates each $pull, and each $push that isn't on the end, as a $set of the whole array anyway.
+	 * 
+	 * @param chapterId
+	 * @param oldOrder The mongo ids of the joins, in the order they are on the chapter now
+	 * @param newOrder The same mongo ids in the order they should be in
+	 * @return true if the joins are in the new order, false if the chapter's joins are no longer in the old order
+	 * @throws ChapterConflictException if the chapter kept being changed while its joins stayed in the old order
+	 */
+	public boolean applyJoinDiff(String chapterId, final List<String> oldOrder, final List<String> newOrder){
+		if(oldOrder.size() != newOrder.size() || !new HashSet<String>(oldOrder).equals(new HashSet<String>(newOrder))){
+			throw(new InternalErrorException("The new order has to have the same joins as the old order."));
+		}
+		
+		return reorderJoins(chapterId, new JoinsReorder(){
+			public List<String> reorder(ArrayList<String> current){
+				//Someone else has changed the order of this chapter since the old order was read
+				return current.equals(oldOrder) ? newOrder : null;
+			}
+		});
+	}
+	
+	/**
+	 * Works out a new order for the joins of a chapter, see reorderJoins
+	 */
+	private interface JoinsReorder {
+		/**
+		 * @param current The ids of the joins the chapter has right now, in order
+		 * @return the same ids in their new order, or null to leave the chapter alone
+		 */
+		List<String> reorder(ArrayList<String> current);
+	}
+	
+	//Reads the order of the joins, works out the new one and writes it
+	//If someone else writes to the joins in between it reads them again, up to maxJoinRetries times
+	//returns true if the joins are in the new order, false if the reorder left the chapter alone
+	private boolean reorderJoins(String chapterId, JoinsReorder reorder){
+		ObjectId id = null;
+		try{
+			this.initMongo();
+			id = getChapterObjectId(chapterId);
+			DBCollection coll = db.getCollection("chapters");
+			
+			for(int attempt = 0; attempt < maxJoinRetries; attempt++){
+				DBObject chapter = coll.findOne(new BasicDBObject("_id", id), new BasicDBObject("joins", 1).append("version", 1));
+				if(chapter == null){
+					throw(new NotFoundException("That chapter could not be found"));
+				}
+				ArrayList<String> oldOrder = getJoinIds(chapter);
+				List<String> newOrder = reorder.reorder(oldOrder);
+				if(newOrder == null){
+					return false;
+				}
+				if(writeJoinDiff(coll, id, chapter, oldOrder, newOrder)){
+					return true;
+				}
+				
+				//Someone else wrote to the chapter between our read and write
+				waitToRetry(attempt);
+			}
+			throw(new ChapterConflictException(chapterId, maxJoinRetries));
+		}finally{
+			ChapterCache.getInstance().invalidate(chapterId);
+			if(id != null){
+				ChapterCache.getInstance().invalidate(id.toString());
+			}
+			this.deInitMongo();
+		}
+	}
+	
+	//Writes a new order for the joins of a chapter we just read, in one attempt
+	//returns false if someone else wrote to the joins since we read them, so nothing was written
+	//@Note: mongo needs to already be initialized
+	private boolean writeJoinDiff(DBCollection coll, ObjectId id, DBObject chapter, List<String> oldOrder, List<String> newOrder){
+		if(oldOrder.equals(newOrder)){
+			return true;
 		}
-		return obj;
+		
+		//Built from the joins we just read, and only written if they are still what is there
+		BasicDBList current = new BasicDBList();
+		current.addAll((List) chapter.get("joins"));
+		BasicDBList joins = orderJoins(current, newOrder);
+		return coll.update(getVersionQuery(id, chapter.get("version")), bumpVersion(new BasicDBObject("$set", new BasicDBObject("joins", joins)))).getN() > 0;
 	}
-
+	
 	/**
-	 * Gets everything joined to this chapter
+	 * A change to the whole joins array of a chapter, see rewriteJoins
+	 */
+	interface JoinsRewrite {
+		/**
+		 * @param joins The joins the chapter has right now, can be changed
+		 * @return the joins to write, or null to leave the chapter alone
+		 */
+		BasicDBList rewrite(BasicDBList joins);
+	}
+	
+	/**
+	 * Reads the joins of a chapter, changes them and writes them back, but only if nobody else has written to them in between
+	 * If someone has it reads them again and tries again, up to maxJoinRetries times
 	 * 
+	 * @note Mongo has to already be initialized
 	 * @param chapterId
-	 * @param start
-	 * @param count
-	 * @return
+	 * @param rewrite
+	 * @return true if the joins were written, false if the rewrite left the chapter alone
+	 * @throws ChapterConflictException if the chapter kept changing
 	 */
-	public ArrayList<Map> getContentForAChapter(String chapterId, int start, int count,Boolean isAdmin){
-		Map t = getChapter(chapterId).toMap();
-		
-		//Because we can not filter on the sub document 
-		//we want to grab all the content and filter it out
-		//And as long as it actually has things joined
-		if(t.containsKey("joins")){
-			try{
-				ArrayList<HashMap<String,Object>> c = (ArrayList<HashMap<String,Object>>) t.get("joins");
-				
-				//We build out list of ids for our two queries.
-				//One with chapterIds one with contentIds
-				ArrayList<ObjectId> chapterIds = new ArrayList<ObjectId>();
-				ArrayList<ObjectId> contentIds = new ArrayList<ObjectId>();
-				LinkedHashMap<String, Map> orderedIds = new LinkedHashMap<String, Map>();
-				
-				//As we loop through we also want to make sure that we let them change the start and limit of what is returned
-				for(HashMap<String, Object> C : c.subList(start, Math.min(start + count, c.size()))){
-					if(C.containsKey("_id") && C.containsKey("scope")){
-						String _id = C.get("_id").toString();
-						if(C.get("scope").equals("chapters")){
-							chapterIds.add(new ObjectId(_id));
-						}else{
-							contentIds.add(new ObjectId(_id));
-						}
-						
-						Map m = new HashMap<String,Object>();
-						
-						m.putAll(C);
-						
-						//We use this linked has map that has all the content in the right order
-						// and also contains the join infermation
-						//To maintain the order of all the ids
-						orderedIds.put(_id, m);
-					}
-				}
-				
-				BasicDBObject inQuery = new BasicDBObject("$in",  contentIds);
-				BasicDBObject query = new BasicDBObject("contentId" , inQuery);
-				query.append("status", "Published");
-				DBCollection coll = db.getCollection("content_versions");
-				
-				//Remove question pools for non admin
-				//because only administrators can view those
-				if(!isAdmin){
-					query.append("type", new BasicDBObject("$ne", "questionpool"));
-				}
-				
-				//For we only need these couple of fields that the content contains
-				BasicDBObject fields = new BasicDBObject("title", 1);
-				fields.append("type", 1);
-				fields.append("contentId", 1);
-				fields.append("publishedDate", 1);
-				fields.append("body", 1);
-				fields.append("users", 1);
-				fields.append("costs",1);				
-				fields.append("_id", 0);
-				DBCursor cur = coll.find(query,fields);
-				
-				//Lets loop through the content results
-				while(cur.hasNext()){
-					DBObject obj = cur.next();
-					Map tempMap = obj.toMap();
-					Object tempId = tempMap.remove("contentId");
-					tempMap.put("_id", tempId.toString());
-					
-					//Get the info that we already have for the content
-					Map alreadyInfo = orderedIds.get(tempMap.get("_id").toString());
-					tempMap.putAll(alreadyInfo);
-					
-					//Now throw this into the map that has the right order
-					orderedIds.put(tempMap.get("_id").toString(), tempMap);
+	boolean rewriteJoins(ObjectId chapterId, JoinsRewrite rewrite){
+		DBCollection coll = db.getCollection("chapters");
+		try{
+			for(int attempt = 0; attempt < maxJoinRetries; attempt++){
+				DBObject chapter = coll.findOne(new BasicDBObject("_id", chapterId), new BasicDBObject("joins", 1).append("version", 1));
+				if(chapter == null){
+					throw(new NotFoundException("That chapter could not be found"));
 				}
 				
-				//Now do the same thing for chapters
-				inQuery = new BasicDBObject("$in",  chapterIds);
-				query = new BasicDBObject("_id" , inQuery);
-				
-				if(!isAdmin){
-					query.append("adminOnly", new BasicDBObject("$ne","1"));
+				BasicDBList current = new BasicDBList();
+				if(chapter.get("joins") instanceof List){
+					current.addAll((List) chapter.get("joins"));
 				}
-				
-				coll = db.getCollection("chapters");
-				
-				fields = new BasicDBObject("name", 1);
-				fields.append("shortName", 1);
-				fields.append("lcpCopyOfChapter", 1);
-				fields.append("lcpLiveUpdates", 1);
-				fields.append("imageId", 1);
-				fields.append("joins.scope", 1);
-				DBCursor chaptersCur = coll.find(query,fields);
-				
-				while(chaptersCur.hasNext()){
-					DBObject obj = chaptersCur.next();
-					Map tempMap = obj.toMap();
-					Object title = tempMap.remove("name");
-					tempMap.put("title", title);
-					tempMap.put("type", "chapters");
-					tempMap.put("_id", tempMap.get("_id").toString());
-					
-					//Get the info that we already have for the content
-					Map alreadyInfo = orderedIds.get(tempMap.get("_id").toString());
-					tempMap.putAll(alreadyInfo);
-					
-					orderedIds.put(tempMap.get("_id").toString(), tempMap);
+				BasicDBList joins = rewrite.rewrite(current);
+				if(joins == null){
+					return false;
 				}
 				
-				ArrayList<Map> joins  = new ArrayList<Map>();
-				
-				//And now lets turn this linked hashmap back into an array with the right order
-				for(String o : orderedIds.keySet()){  
-					joins.add(orderedIds.get(o));
+				BasicDBObject update = bumpVersion(new BasicDBObject("$set", new BasicDBObject("joins", joins)));
+				if(coll.update(getVersionQuery(chapterId, chapter.get("version")), update).getN() > 0){
+					return true;
 				}
-				
-				return joins;
-			}catch(Exception e){
-				throw(new InternalErrorException(e.toString()));
+				waitToRetry(attempt);
 			}
-		}else{
-			return new ArrayList<Map>();
+		}finally{
+			ChapterCache.getInstance().invalidate(chapterId.toString());
 		}
+		throw(new ChapterConflictException(chapterId.toString(), maxJoinRetries));
 	}
 	
 	/**
-	 * Changes the order of the joins for a chapter
-	 * 
-	 * Will put joins in the order they are in the the chaptersList
+	 * Adds the version bump to an update of the joins of a chapter
+	 * Every write to the joins has to go through this so the read-modify-writes can tell they happened,
+	 * the join summaries from JoinSummaryMaintainer included, or a rewrite would put an older summary back
 	 * 
-	 * @param chapterId
-	 * @param chaptersList ArrayList of Maps that contain : "scope" and "scopeId" for each chapter, in the intended order
-	 * @return boolean
+	 * @param update
+	 * @return the same update
 	 */
-	public boolean changeJoinOrder(String chapterId, ArrayList<Map> chaptersList){
-		//As long as we are actually updating
-		if(chaptersList.size() > 0){
-			Map t = getChapter(chapterId).toMap();
-			
-			//Because we can not filter on the sub document 
-			//we want to grab all the content and filter it out
-			if(t.containsKey("joins")){
-				try{
-					String scope = "";
-					String scopeId = "";
-					ArrayList<String> ids = new ArrayList<String>();
-					
-					//Loop through the array that contains the new order
-					for(Map m : chaptersList){
-						if(m.containsKey("scope") && m.containsKey("scopeId")){
-							scopeId = m.get("scopeId").toString();
-							scope = m.get("scope").toString();
-							
-							//If this is actually a mongoId lets make it one
-							if(ObjectId.isValid(scopeId)){
-								ids.add(scopeId);
-							}else{
-								//Get the new id from the old id
-								BasicDBObject scopeIdQuery = new BasicDBObject("oldId", scopeId);
-								String collName = "";
-								if(scope.equals("chapters")){
-									collName = "chapters";
-								}else if(scope.equals("content")){
-									collName = "content";
-								}else{
-									return false;
-								}
-								
-								DBCollection scopeColl = db.getCollection(collName);
-								DBObject found = scopeColl.findOne(scopeIdQuery);			
-								if(found != null){
-									ids.add(found.get("_id").toString());
-								}else{
-									return false;
-								}
-							}
-						}
-					}
-					ArrayList<HashMap<String,Object>> c = (ArrayList<HashMap<String,Object>>) t.get("joins");
-					LinkedHashMap<String, Map> orderedIds = new LinkedHashMap<String, Map>();
-					
-					for(String id: ids){
-						//To maintain the order of all the ids
-						orderedIds.put(id, new HashMap<String, Object>());
-					}
-					
-					for(HashMap<String, Object> C : c){
-						if(C.containsKey("_id")){
-							orderedIds.put(C.get("_id").toString(), C);
-						}
-					}
-					
-					//Throw in the join information in the new order for the mongo query
-					BasicDBList joins  = new BasicDBList();
-					for(String o : orderedIds.keySet()){
-						joins.add(orderedIds.get(o));
-					}
-					
-					BasicDBObject query;
-					if(ObjectId.isValid(chapterId)){
-						query = new BasicDBObject("_id", new ObjectId(chapterId));				
-					}else{
-						//they may be looking for an oldId
-						query = new BasicDBObject("oldId", chapterId);
-					}
-					
-					//And now replace the old joins with the new reorganized joins
-					DBCollection coll = db.getCollection("chapters");
-					BasicDBObject joinQuery = new BasicDBObject("joins", joins);
-					BasicDBObject sub = new BasicDBObject("$set", joinQuery);
-					coll.update(query, sub);
-					
-					return true;
-				}catch(Exception e){
-					e.printStackTrace();
-					return false;
-				}finally{
-					this.deInitMongo();
+	static BasicDBObject bumpVersion(BasicDBObject update){
+		update.append("$inc", new BasicDBObject("version", 1));
+		return update;
+	}
+	
+	//Matches the chapter only if it is still at this version, chapters that were never changed don't have one
+	private BasicDBObject getVersionQuery(ObjectId chapterId, Object version){
+		BasicDBObject query = new BasicDBObject("_id", chapterId);
+		if(version == null){
+			query.append("version", new BasicDBObject("$exists", false));
+		}else{
+			query.append("version", version);
+		}
+		return query;
+	}
+	
+	//Backs off a little longer after each conflict so the writers don't keep hitting each other
+	private void waitToRetry(int attempt){
+		try{
+			Thread.sleep((long) (Math.random() * 10 * (attempt + 1)));
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Moves a join so it is next to another join, offset 0 puts it before and 1 after
+	private boolean moveJoinNextTo(String chapterId, final String scopeId, final String anchorId, final int offset){
+		return reorderJoins(chapterId, new JoinsReorder(){
+			public List<String> reorder(ArrayList<String> current){
+				if(!current.contains(scopeId) || !current.contains(anchorId) || scopeId.equals(anchorId)){
+					return null;
+				}
+				ArrayList<String> newOrder = new ArrayList<String>(current);
+				newOrder.remove(scopeId);
+				newOrder.add(newOrder.indexOf(anchorId) + offset, scopeId);
+				return newOrder;
+			}
+		});
+	}
+	
+	//returns the ids of the joins on a chapter in order, joins without an _id are left out
+	private ArrayList<String> getJoinIds(DBObject chapter){
+		ArrayList<String> ids = new ArrayList<String>();
+		if(chapter.containsField("joins")){
+			for(Object o : (List) chapter.get("joins")){
+				Object joinId = ((DBObject) o).get("_id");
+				if(joinId != null){
+					ids.add(joinId.toString());
 				}
 			}
-		}else{
-			throw(new InternalErrorException("A List of Ids is required."));
 		}
-		
-		return false;
+		return ids;
 	}
 	
 	/**
@@ -364,7 +1927,9 @@ public class ChapterDAO extends DAO {
 	 * @param hide Set to true to hide
 	 * @param isLCP true if this is an LCPed scope
 	 * @param lcpedFrom The book id this scope was LCPed from. If this is a copied chapter do not set to anything.
-	 * @return
+	 * @return true if the join was added or the existing join was changed, false if it already had these values or the chapter was not found
+	 * @note This used to return true whenever nothing threw, now a missing chapter or a join that already has these values returns false
+	 * @throws InternalErrorException if the chapter would end up inside its own subtree
 	 */
 	public boolean addContentToChapter(String chapterId, String scopeId, String scope, String joinType,String featured, String hide, String isLCP,String lcpedFrom){
 		boolean ret = false;
@@ -373,7 +1938,7 @@ public class ChapterDAO extends DAO {
 		
 		try{
 			this.initMongo();
-			//first, we need to see if this chapter/content pair already exists
+			//first, find the chapter by its id or oldId
 			if(ObjectId.isValid(chapterId)){
 				query = new BasicDBObject("_id", new ObjectId(chapterId));				
 			}else{
@@ -386,127 +1951,289 @@ public class ChapterDAO extends DAO {
 			
 			if(!ObjectId.isValid(scopeId)){
 				//Get the new id from the old id for the scope being joined
-				BasicDBObject scopeIdQuery = new BasicDBObject("oldId", scopeId);
-				String collName = "";
-				if(scope.equals("chapters")){
-					collName = "chapters";
-				}else if(scope.equals("content")){
-					collName = "content";
-				}else{
-					throw(new NotFoundException());
-				}
-				
-				DBCollection scopeColl = db.getCollection(collName);
-				
-				DBObject found = scopeColl.findOne(scopeIdQuery);			
+				ObjectId found = LegacyIdResolver.getInstance().resolve(db, scope, scopeId);
 				if(found != null){
-					scopeId = found.get("_id").toString();
+					scopeId = found.toString();
 				}else{
 					throw(new NotFoundException("This " + scope + " was not found."));
 				}
 			}
 			
-			//And lets see if this is already joined to a chapter
-			//So we know whether to update a join or create a new one
-			query.append("joins._id", new ObjectId(scopeId));
-			DBCollection coll = db.getCollection("chapters");
-			DBObject found = coll.findOne(query);
+			//Don't let a chapter end up inside its own subtree
+			if(scope.equals("chapters") && ChapterHierarchy.getInstance().wouldCreateCycle(getChapterObjectId(chapterId), new ObjectId(scopeId))){
+				throw(new InternalErrorException("A chapter can not be joined inside itself."));
+			}
 			
-			if(found != null){
-				//Update the existing join
-				//We only want to update the fields that were sent to us
-				BasicDBObject removeFields = new BasicDBObject();
-				BasicDBObject contentDetails = new BasicDBObject();
-				if(!scope.equals("")){
-					contentDetails.append("joins.$.scope", scope);
+			DBCollection coll = db.getCollection("chapters");
+			ChapterJoin join = new ChapterJoin(scopeId, scope, joinType, featured, hide, isLCP, lcpedFrom);
+			ChapterJoin.Outcome outcome = addOrUpdateJoin(coll, query, new ObjectId(scopeId), join);
+			if(outcome == ChapterJoin.Outcome.ADDED || outcome == ChapterJoin.Outcome.UPDATED){
+				ChapterCache.getInstance().invalidate(chapterId);
+				if(scope.equals("chapters")){
+					ChapterHierarchy.getInstance().addJoin(getChapterObjectId(chapterId), new ObjectId(scopeId), lcpedFrom.length() > 0);
 				}
-				if(!joinType.equals("")){
-					contentDetails.append("joins.$.joinType", joinType);
+				if(JoinSummaryMaintainer.isEnabled()){
+					JoinSummaryMaintainer.refreshJoins(db, getChapterObjectId(chapterId), Collections.singletonList(new ObjectId(scopeId)));
 				}
-				
-				if(featured.equals("1")){
-					contentDetails.append("joins.$.featured", "1");
-				}else if(featured.equals("0")){
-					removeFields.append("joins.$.featured", 1);
+				ret = true;
+			}
+			
+		}catch(InternalErrorException e){
+			//The cycle check, the caller has to know why it wasn't joined
+			throw(e);
+		}catch(Exception e){
+			e.printStackTrace();
+		}finally{
+			this.deInitMongo();
+		}
+		return ret;
+	}
+	
+	/**
+	 * Adds many pieces of content or chapters to a chapter at once
+	 * 
+	 * Legacy ids are resolved with one query per scope, every new join is added with one $push
+	 * and every join that is already on the chapter is updated with one bulk write.
+	 * New joins go on the end of the chapter in the order they are in the list.
+	 * A join that already has the values it was sent with is UNCHANGED and isn't written.
+	 * An update is FAILED if, once written, the join is gone or has other values because someone else changed it in between.
+	 * 
+	 * @param chapterId
+	 * @param joins
+	 * @return The outcome for each join, in the same order as the joins
+	 */
+	public ArrayList<ChapterJoin.Outcome> addContentToChapter(String chapterId, List<ChapterJoin> joins){
+		ArrayList<ChapterJoin.Outcome> ret = new ArrayList<ChapterJoin.Outcome>();
+		if(joins.isEmpty()){
+			return ret;
+		}
+		
+		try{
+			this.initMongo();
+			DBCollection coll = db.getCollection("chapters");
+			
+			//We only need the fields an update can change to know whether to add, update or leave a join alone
+			BasicDBObject joinFields = new BasicDBObject("joins._id", 1);
+			for(String field : Arrays.asList("scope", "joinType", "featured", "hide", "isLCP", "lcpedFrom")){
+				joinFields.append("joins." + field, 1);
+			}
+			DBObject chapter = coll.findOne(getChapterQuery(chapterId), joinFields);
+			if(chapter == null){
+				throw(new NotFoundException("That chapter could not be found"));
+			}
+			ObjectId id = (ObjectId) chapter.get("_id");
+			
+			//Each join as it will be once the joins earlier in the list are written
+			HashMap<ObjectId, DBObject> joined = new HashMap<ObjectId, DBObject>();
+			if(chapter.containsField("joins")){
+				for(Object o : (List) chapter.get("joins")){
+					joined.put((ObjectId) ((DBObject) o).get("_id"), (DBObject) o);
 				}
-				
-				
-				if(hide.equals("1")){
-					contentDetails.append("joins.$.hide", "1");
-				}else if(hide.equals("0")){
-					removeFields.append("joins.$.hide", 1);
+			}
+			
+			//Resolve all the legacy ids for each scope at once
+			ArrayList<String> chapterIds = new ArrayList<String>();
+			ArrayList<String> contentIds = new ArrayList<String>();
+			for(ChapterJoin join : joins){
+				if(join.getScope().equals("chapters")){
+					chapterIds.add(join.getScopeId());
+				}else if(join.getScope().equals("content")){
+					contentIds.add(join.getScopeId());
 				}
-				
-				if(isLCP.equals("1")){
-					contentDetails.append("joins.$.isLCP", "1");
-				}else if(isLCP.equals("0")){
-					removeFields.append("joins.$.isLCP", 1);
+			}
+			Map<String, ObjectId> chapterIdMap = LegacyIdResolver.getInstance().resolveAll(db, "chapters", chapterIds);
+			Map<String, ObjectId> contentIdMap = LegacyIdResolver.getInstance().resolveAll(db, "content", contentIds);
+			
+			BasicDBList newJoins = new BasicDBList();
+			ArrayList<Integer> added = new ArrayList<Integer>();
+			ArrayList<Integer> updated = new ArrayList<Integer>();
+			ArrayList<DBObject> updates = new ArrayList<DBObject>();
+			//The updates to joins that are added earlier in this list, keyed on where they are in the list
+			HashMap<Integer, ObjectId> updatesToAdded = new HashMap<Integer, ObjectId>();
+			//The resolved id of each join, null if it has none
+			ArrayList<ObjectId> scopeIds = new ArrayList<ObjectId>();
+			
+			for(int i = 0; i < joins.size(); i++){
+				ChapterJoin join = joins.get(i);
+				ObjectId scopeId = null;
+				if(join.getScope().equals("chapters")){
+					scopeId = chapterIdMap.get(join.getScopeId());
+				}else if(join.getScope().equals("content")){
+					scopeId = contentIdMap.get(join.getScopeId());
+				}
+				scopeIds.add(scopeId);
+				if(!join.getScope().equals("chapters") && !join.getScope().equals("content")){
+					ret.add(ChapterJoin.Outcome.INVALID);
+					continue;
 				}
 				
-				if(lcpedFrom.length() > 0){
-					contentDetails.append("joins.$.lcpedFrom", lcpedFrom);
+				if(scopeId == null){
+					ret.add(ChapterJoin.Outcome.NOT_FOUND);
+				}else if(join.getScope().equals("chapters") && ChapterHierarchy.getInstance().wouldCreateCycle(id, scopeId)){
+					ret.add(ChapterJoin.Outcome.CYCLE);
+				}else if(joined.containsKey(scopeId)){
+					//Already joined, or added earlier in this list, so it gets updated if that changes anything
+					if(!applyJoinUpdate(joined.get(scopeId), join)){
+						ret.add(ChapterJoin.Outcome.UNCHANGED);
+						continue;
+					}
+					BasicDBObject updateQuery = new BasicDBObject("_id", id);
+					updateQuery.append("joins", getJoinChangedMatch(scopeId, join));
+					updates.add(updateQuery);
+					updates.add(getJoinUpdate(join));
+					updated.add(i);
+					ret.add(ChapterJoin.Outcome.UPDATED);
+					if(newJoinIndex(newJoins, scopeId) >= 0){
+						updatesToAdded.put(i, scopeId);
+					}
 				}else{
-					removeFields.append("joins.$.lcpedFrom", 1);
+					BasicDBObject newJoin = getNewJoin(scopeId, join);
+					newJoins.add(newJoin);
+					joined.put(scopeId, new BasicDBObject(newJoin));
+					added.add(i);
+					ret.add(ChapterJoin.Outcome.ADDED);
 				}
-				
-				//And now update and remove fields as nessasary
-				BasicDBObject sub = new BasicDBObject("$set", contentDetails);
-				sub.append("$unset", removeFields);
-				coll.update(query, sub);
-				ret = true;
-			}else{
-				//Add a join with the fields sent to us
-				//we need to add it in
-				query.removeField("joins._id");
-				BasicDBObject contentDetails = new BasicDBObject("_id", new ObjectId(scopeId));
-				contentDetails.append("scope", scope);
-				contentDetails.append("joinType", joinType);
-				
-				if(featured.equals("1")){
-					contentDetails.append("featured", "1");
+			}
+			
+			try{
+				//Add all the new joins to the end of the joins array subdocument at once
+				//As long as nobody has joined any of them since we looked
+				if(!newJoins.isEmpty()){
+					ArrayList<Object> newIds = new ArrayList<Object>();
+					for(Object o : newJoins){
+						newIds.add(((DBObject) o).get("_id"));
+					}
+					BasicDBObject pushQuery = new BasicDBObject("_id", id);
+					pushQuery.append("joins._id", new BasicDBObject("$nin", newIds));
+					BasicDBObject each = new BasicDBObject("$each", newJoins);
+					BasicDBObject sub = bumpVersion(new BasicDBObject("$push", new BasicDBObject("joins", each)));
+					
+					if(coll.update(pushQuery, sub).getN() == 0){
+						//Someone else got to one of them first, so add or update them one at a time instead
+						for(int k = 0; k < added.size(); k++){
+							ChapterJoin join = joins.get(added.get(k));
+							ObjectId scopeId = (ObjectId) newIds.get(k);
+							ChapterJoin.Outcome outcome = addOrUpdateJoin(coll, new BasicDBObject("_id", id), scopeId, join);
+							ret.set(added.get(k), outcome == null ? ChapterJoin.Outcome.FAILED : outcome);
+						}
+					}
 				}
-				
-				if(hide.equals("1")){
-					contentDetails.append("hide", "1");
+			}catch(Exception e){
+				e.printStackTrace();
+				for(Integer i : added){
+					ret.set(i, ChapterJoin.Outcome.FAILED);
 				}
-				
-				if(isLCP.equals("1")){
-					contentDetails.append("isLCP", "1");
+			}
+			
+			//An update to a join that failed to be added fails with it
+			for(Integer i : updatesToAdded.keySet()){
+				int k = newJoinIndex(newJoins, updatesToAdded.get(i));
+				if(ret.get(added.get(k)) == ChapterJoin.Outcome.FAILED){
+					ret.set(i, ChapterJoin.Outcome.FAILED);
 				}
-				
-				if(lcpedFrom.length() > 0){
-					contentDetails.append("lcpedFrom", lcpedFrom);
+			}
+			
+			//Then update the existing joins in one trip
+			//It is ordered so the same join can be in the list more than once
+			if(!updated.isEmpty()){
+				BulkWriteOperation bulk = coll.initializeOrderedBulkOperation();
+				for(int i = 0; i < updates.size(); i += 2){
+					bulk.find(updates.get(i)).updateOne(updates.get(i + 1));
+				}
+				try{
+					//An update that matched nothing lost a race, the join was removed or already changed by someone else
+					if(bulk.execute().getMatchedCount() < updated.size()){
+						checkJoinUpdates(coll, id, joins, scopeIds, updated, ret);
+					}
+				}catch(BulkWriteException e){
+					e.printStackTrace();
+					//Everything from the first error on was not written
+					int first = e.getWriteErrors().isEmpty() ? 0 : e.getWriteErrors().get(0).getIndex();
+					for(int i = first; i < updated.size(); i++){
+						ret.set(updated.get(i), ChapterJoin.Outcome.FAILED);
+					}
 				}
-				
-				//And then lets add it ot the end of the joins array subdocument
-				BasicDBObject content = new BasicDBObject("joins", contentDetails);
-				BasicDBObject sub = new BasicDBObject("$push", content);
-				coll.update(query, sub);
-				ret = true;
 			}
 			
-		}catch(Exception e){
-			e.printStackTrace();
+			ChapterCache.getInstance().invalidate(id.toString());
+			for(int i = 0; i < joins.size(); i++){
+				ChapterJoin join = joins.get(i);
+				boolean written = ret.get(i) == ChapterJoin.Outcome.ADDED || ret.get(i) == ChapterJoin.Outcome.UPDATED;
+				if(written && join.getScope().equals("chapters")){
+					ChapterHierarchy.getInstance().addJoin(id, chapterIdMap.get(join.getScopeId()), join.getLcpedFrom().length() > 0);
+				}
+			}
+			
+			//The new joins don't have a summary yet, only the ones that were written
+			if(JoinSummaryMaintainer.isEnabled()){
+				HashSet<ObjectId> writtenIds = new HashSet<ObjectId>();
+				for(int i = 0; i < joins.size(); i++){
+					if(ret.get(i) == ChapterJoin.Outcome.ADDED || ret.get(i) == ChapterJoin.Outcome.UPDATED){
+						writtenIds.add(scopeIds.get(i));
+					}
+				}
+				if(!writtenIds.isEmpty()){
+					JoinSummaryMaintainer.refreshJoins(db, id, writtenIds);
+				}
+			}
 		}finally{
 			this.deInitMongo();
 		}
 		return ret;
 	}
 	
+	/**
+	 * Refreshes the summary kept on every join to a piece of content
+	 * Has to be called when a version of the content is published or unpublished while JoinSummaryMaintainer is enabled
+	 * 
+	 * @param contentId
+	 * @return the number of chapters that were updated
+	 */
+	public int refreshContentSummaries(String contentId){
+		try{
+			this.initMongo();
+			ObjectId found = LegacyIdResolver.getInstance().resolve(db, "content", contentId);
+			if(found == null){
+				throw(new NotFoundException("This content was not found."));
+			}
+			return JoinSummaryMaintainer.refreshContent(db, found);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Fills in the summaries on every join of a chapter
+	 * Used to fill in the chapters that were joined to before JoinSummaryMaintainer was enabled
+	 * 
+	 * @param chapterId
+	 * @return the number of joins that were updated
+	 */
+	public int refreshJoinSummaries(String chapterId){
+		try{
+			this.initMongo();
+			return JoinSummaryMaintainer.refreshJoins(db, getChapterObjectId(chapterId), null);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
 	/**
 	 * Removes content from a chapter
 	 * 
 	 * @param chapterId
 	 * @param scopeId
 	 * @param scope Must be either "content" or "chapters"
-	 * @return
+	 * @return true if the join was removed, false if it was not on the chapter
+	 * @note This used to return true when there was nothing to remove, now a join that isn't on the chapter
+	 * 		 (or a chapter that isn't there) returns false
 	 */
 	public boolean removeContentFromChapter(String chapterId, String scopeId,String scope){
 		boolean ret = false;
 		BasicDBObject query;
 		try{
 			this.initMongo();
-			//first, we need to see if this chapter/content pair already exists
+			//first, find the chapter by its id or oldId
 			if(ObjectId.isValid(chapterId)){
 				query = new BasicDBObject("_id", new ObjectId(chapterId));				
 			}else{
@@ -516,40 +2243,28 @@ public class ChapterDAO extends DAO {
 			
 			//Find the new id for this scope if this is an oldId
 			if(!ObjectId.isValid(scopeId)){
-				BasicDBObject scopeIdQuery = new BasicDBObject("oldId", scopeId);
-				String collName = "";
-				if(scope.equals("chapters")){
-					collName = "chapters";
-				}else if(scope.equals("content")){
-					collName = "content";
-				}else{
-					throw(new NotFoundException("This " + scope + " was not found."));
-				}
-				
-				DBCollection scopeColl = db.getCollection(collName);
-				DBObject found = scopeColl.findOne(scopeIdQuery);			
+				ObjectId found = LegacyIdResolver.getInstance().resolve(db, scope, scopeId);
 				if(found != null){
-					scopeId = found.get("_id").toString();
+					scopeId = found.toString();
 				}else{
 					throw(new NotFoundException("This " + scope + " was not found."));
 				}
 			}
 			
+			//Only matches if the join is on this chapter
+			//so the pull tells us whether there was anything to remove
 			query.append("joins._id", new ObjectId(scopeId));
 			DBCollection coll = db.getCollection("chapters");
-			DBObject foundChapter = coll.findOne(query);		
 			
-			//If this chapter doesn't exist then we don't need to remove a join
-			if(foundChapter == null){
-				ret = true;
-			}else{
-				//Now we want to pull the join from the joins array subdocument
-				BasicDBObject findQuery = new BasicDBObject("_id",  foundChapter.get("_id"));
-				
-				BasicDBObject content = new BasicDBObject("_id",  new ObjectId(scopeId));
-				BasicDBObject join = new BasicDBObject("joins",  content);
-				BasicDBObject pullQuery = new BasicDBObject("$pull",  join);
-				coll.update(findQuery, pullQuery);
+			//Now we want to pull the join from the joins array subdocument
+			BasicDBObject content = new BasicDBObject("_id",  new ObjectId(scopeId));
+			BasicDBObject join = new BasicDBObject("joins",  content);
+			BasicDBObject pullQuery = bumpVersion(new BasicDBObject("$pull",  join));
+			if(coll.update(query, pullQuery).getN() > 0){
+				ChapterCache.getInstance().invalidate(chapterId);
+				if(scope.equals("chapters")){
+					ChapterHierarchy.getInstance().removeJoin(getChapterObjectId(chapterId), new ObjectId(scopeId));
+				}
 				ret = true;
 			}
 		}catch(Exception e){
@@ -573,20 +2288,9 @@ public class ChapterDAO extends DAO {
 			this.initMongo();
 			//Find the new id for this scope if this is an oldId
 			if(!ObjectId.isValid(scopeId)){
-				BasicDBObject scopeIdQuery = new BasicDBObject("oldId", scopeId);
-				String collName = "";
-				if(scope.equals("chapters")){
-					collName = "chapters";
-				}else if(scope.equals("content")){
-					collName = "content";
-				}else{
-					throw(new NotFoundException("This " + scope + " was not found."));
-				}
-				
-				DBCollection scopeColl = db.getCollection(collName);
-				DBObject found = scopeColl.findOne(scopeIdQuery);			
+				ObjectId found = LegacyIdResolver.getInstance().resolve(db, scope, scopeId);
 				if(found != null){
-					scopeId = found.get("_id").toString();
+					scopeId = found.toString();
 				}else{
 					throw(new NotFoundException("This " + scope + " was not found."));
 				}
@@ -603,13 +2307,23 @@ public class ChapterDAO extends DAO {
 			content.add(new BasicDBObject("scope", scope));
 			
 			BasicDBObject join = new BasicDBObject("joins",  new BasicDBObject("$and",content));
-			BasicDBObject pullQuery = new BasicDBObject("$pull",  join);
+			BasicDBObject pullQuery = bumpVersion(new BasicDBObject("$pull",  join));
 			
 			DBCollection coll = db.getCollection("chapters");
 			
 			//Pull this join sub document from every chapter that contains it
+			checkQueryShape(coll, findQuery);
 			coll.update(findQuery, pullQuery,false,true);
+			ChapterCache.getInstance().invalidateJoinedTo(new ObjectId(scopeId));
+			if(scope.equals("chapters")){
+				ChapterHierarchy.getInstance().removeAllJoinsTo(new ObjectId(scopeId));
+			}
+			//This is usually on its way to being deleted
+			LegacyIdResolver.getInstance().forget(scope, new ObjectId(scopeId));
 			ret = true;
+		}catch(InternalErrorException e){
+			//A failed query shape check
+			throw(e);
 		}catch(Exception e){
 			e.printStackTrace();
 		}finally{
@@ -621,54 +2335,23 @@ public class ChapterDAO extends DAO {
 	/**
 	 * Gets all the chapters this scope is joined to directly
 	 * 
+	 * @note Everything is read into memory, use streamAllChaptersForContent for content joined to many chapters
 	 * @param scopeId
 	 * @param scope Must be either "chapters" or "content".
-	 * @return
-	 */
-	public ArrayList<DBObject> getAllChaptersForContent(String scopeId, String scope){
-		ArrayList<DBObject> ret = new ArrayList<DBObject>();
-		try{
-			this.initMongo();
-			//Find the new id for this scope if this is an oldId
-			if(!ObjectId.isValid(scopeId)){
-				BasicDBObject scopeIdQuery = new BasicDBObject("oldId", scopeId);
-				String collName = "";
-				if(scope.equals("chapters")){
-					collName = "chapters";
-				}else if(scope.equals("content")){
-					collName = "content";
-				}else{
-					throw(new NotFoundException("This " + scope + " was not found."));
-				}
-				
-				DBCollection scopeColl = db.getCollection(collName);
-				DBObject found = scopeColl.findOne(scopeIdQuery);	
-				//If we found it we want to use this id
-				if(found != null){
-					scopeId = found.get("_id").toString();
-				}else{
-					throw(new NotFoundException("This " + scope + " was not found."));
-				}
-			}
-			ArrayList<BasicDBObject> query = new ArrayList<BasicDBObject>();
-			query.add(new BasicDBObject("joins._id", new ObjectId(scopeId)));
-			
-			BasicDBObject findQuery = new BasicDBObject("$and", query);
-			
-			BasicDBObject fields = getAllViewableFields();
-			fields.removeField("joins");
-
-			//Only grabs the relevant join
-			fields.append("joins.$", 1);
-			
-			DBCollection coll = db.getCollection("chapters");
-
-			//Pull this join sub document from every chapter that contains it
-			DBCursor cur = coll.find(findQuery,fields);
+	 * @return
+	 */
+	public ArrayList<DBObject> getAllChaptersForContent(String scopeId, String scope){
+		ArrayList<DBObject> ret = new ArrayList<DBObject>();
+		try{
+			this.initMongo();
+			DBCursor cur = findAllChaptersForContent(scopeId, scope);
 			while(cur.hasNext()){
 				DBObject obj = cur.next();
 				ret.add(obj);
 			}
+		}catch(InternalErrorException e){
+			//A failed query shape check
+			throw(e);
 		}catch(Exception e){
 			e.printStackTrace();
 		}finally{
@@ -677,6 +2360,136 @@ public class ChapterDAO extends DAO {
 		return ret;
 	}
 	
+	/**
+	 * Gets all the chapters this scope is joined to directly, one batch at a time
+	 * 
+	 * The chapters are read from mongo as they are iterated so memory stays the same no matter how many there are.
+	 * This DAO keeps its mongo connection until the cursor is closed, or until it runs out of chapters,
+	 * so don't use it for anything else until then.
+	 * 
+	 * @note The mongo cursor stays open on the server until this is closed, or until mongo times it out
+	 * 
+	 * @param scopeId
+	 * @param scope Must be either "chapters" or "content".
+	 * @param batchSize How many chapters to get from mongo at a time, 0 lets mongo decide
+	 * @return ChapterCursor that has to be closed when you are done with it
+	 */
+	public ChapterCursor streamAllChaptersForContent(String scopeId, String scope, int batchSize){
+		this.initMongo();
+		try{
+			DBCursor cur = findAllChaptersForContent(scopeId, scope);
+			if(batchSize > 0){
+				cur.batchSize(batchSize);
+			}
+			return new ChapterCursor(cur);
+		}catch(RuntimeException e){
+			this.deInitMongo();
+			throw(e);
+		}
+	}
+	
+	//Finds every chapter this scope is joined to with only the relevant join
+	//@Note: mongo needs to already be initialized
+	private DBCursor findAllChaptersForContent(String scopeId, String scope){
+		//Find the new id for this scope if this is an oldId
+		if(!ObjectId.isValid(scopeId)){
+			ObjectId found = LegacyIdResolver.getInstance().resolve(db, scope, scopeId);
+			//If we found it we want to use this id
+			if(found != null){
+				scopeId = found.toString();
+			}else{
+				throw(new NotFoundException("This " + scope + " was not found."));
+			}
+		}
+		ArrayList<BasicDBObject> query = new ArrayList<BasicDBObject>();
+		query.add(new BasicDBObject("joins._id", new ObjectId(scopeId)));
+		
+		BasicDBObject findQuery = new BasicDBObject("$and", query);
+		
+		BasicDBObject fields = getAllViewableFields();
+		fields.removeField("joins");
+
+		//Only grabs the relevant join
+		fields.append("joins.$", 1);
+		
+		DBCollection coll = db.getCollection("chapters");
+
+		//Pull this join sub document from every chapter that contains it
+		checkQueryShape(coll, findQuery);
+		return coll.find(findQuery,fields);
+	}
+	
+	/**
+	 * Chapter Cursor
+	 * 
+	 * Iterates over chapters straight from a mongo cursor, or streams them with stream().
+	 * Closing it, or reading the last chapter, closes the cursor and lets go of the DAO's mongo connection.
+	 */
+	public class ChapterCursor implements Iterator<DBObject>, Iterable<DBObject>, Closeable {
+		
+		private final DBCursor cur;
+		private boolean closed = false;
+		
+		private ChapterCursor(DBCursor cur){
+			this.cur = cur;
+		}
+		
+		public boolean hasNext(){
+			if(closed){
+				return false;
+			}
+			boolean more = false;
+			try{
+				more = cur.hasNext();
+			}finally{
+				if(!more){
+					close();
+				}
+			}
+			return more;
+		}
+		
+		public DBObject next(){
+			if(!hasNext()){
+				throw(new NoSuchElementException());
+			}
+			return cur.next();
+		}
+		
+		public void remove(){
+			throw(new UnsupportedOperationException());
+		}
+		
+		public Iterator<DBObject> iterator(){
+			return this;
+		}
+		
+		/**
+		 * The chapters as a sequential Stream, closing the stream closes this cursor
+		 * 
+		 * @note Use it in a try-with-resources unless it is read to the end
+		 * @return
+		 */
+		public Stream<DBObject> stream(){
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable(){
+				public void run(){
+					close();
+				}
+			});
+		}
+		
+		public synchronized void close(){
+			if(!closed){
+				closed = true;
+				try{
+					cur.close();
+				}finally{
+					ChapterDAO.this.deInitMongo();
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Gets the parent chapter for a chapter
 	 * 
@@ -689,16 +2502,27 @@ public class ChapterDAO extends DAO {
 			this.initMongo();
 			//Find the new id for this scope if this is an oldId
 			if(!ObjectId.isValid(chapterId)){
-				BasicDBObject scopeIdQuery = new BasicDBObject("oldId", chapterId);
-				
-				DBCollection scopeColl = db.getCollection("chapters");
-				DBObject found = scopeColl.findOne(scopeIdQuery);			
+				ObjectId found = LegacyIdResolver.getInstance().resolve(db, "chapters", chapterId);
 				if(found != null){
-					chapterId = found.get("_id").toString();
+					chapterId = found.toString();
 				}else{
 					throw(new NotFoundException("This chapter was not found."));
 				}
 			}
+			DBCollection coll = db.getCollection("chapters");
+			
+			//If we have the hierarchy we usually already know which chapter it is
+			//It only sees this process's changes, so when it doesn't have a parent we still ask mongo
+			if(ChapterHierarchy.getInstance().isLoaded()){
+				ObjectId parent = ChapterHierarchy.getInstance().getParent(new ObjectId(chapterId));
+				if(parent != null){
+					DBObject obj = coll.findOne(new BasicDBObject("_id", parent));
+					if(obj != null){
+						return obj;
+					}
+				}
+			}
+			
 			BasicDBObject query = new BasicDBObject();
 			//If this Id exists in the subdocument of a chapter
 			query.append("_id", new ObjectId(chapterId));
@@ -709,15 +2533,17 @@ public class ChapterDAO extends DAO {
 			BasicDBObject elmMatch = new BasicDBObject("$elemMatch", query);
 			
 			BasicDBObject findQuery = new BasicDBObject("joins", elmMatch);
-			
-			DBCollection coll = db.getCollection("chapters");
 
 			//Pull this join sub document from every chapter that contains it
 			
+			checkQueryShape(coll, findQuery);
 			DBObject obj = coll.findOne(findQuery);
 			if(obj != null){
 				ret =  obj;
 			}
+		}catch(InternalErrorException e){
+			//A failed query shape check
+			throw(e);
 		}catch(Exception e){
 			e.printStackTrace();
 		}finally{
@@ -726,24 +2552,85 @@ public class ChapterDAO extends DAO {
 		return ret;
 	}
 	
+	/**
+	 * Gets the ids of every parent of a chapter going up, nearest first, for breadcrumbs
+	 * Needs the chapter hierarchy to be loaded with loadChapterHierarchy
+	 * 
+	 * @param chapterId
+	 * @return
+	 */
+	public ArrayList<String> getChapterAncestors(String chapterId){
+		ArrayList<String> ret = new ArrayList<String>();
+		ObjectId id = resolveChapterId(chapterId);
+		for(ObjectId ancestor : ChapterHierarchy.getInstance().getAncestors(id)){
+			ret.add(ancestor.toString());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the ids of every chapter under a chapter
+	 * Needs the chapter hierarchy to be loaded with loadChapterHierarchy
+	 * 
+	 * @param chapterId
+	 * @return
+	 */
+	public ArrayList<String> getChapterDescendants(String chapterId){
+		ArrayList<String> ret = new ArrayList<String>();
+		ObjectId id = resolveChapterId(chapterId);
+		for(ObjectId descendant : ChapterHierarchy.getInstance().getDescendants(id)){
+			ret.add(descendant.toString());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Builds the in memory chapter hierarchy from mongo
+	 * Once it is loaded parent lookups come from memory and joins that would put a chapter in its own subtree are refused
+	 */
+	public void loadChapterHierarchy(){
+		try{
+			this.initMongo();
+			ChapterHierarchy.getInstance().load(db);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	//returns the mongo id for a chapter id or oldId
+	private ObjectId resolveChapterId(String chapterId){
+		if(ObjectId.isValid(chapterId)){
+			return new ObjectId(chapterId);
+		}
+		try{
+			this.initMongo();
+			return getChapterObjectId(chapterId);
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	//returns the mongo id for a chapter id or oldId
+	//@Note: mongo needs to already be initialized
+	private ObjectId getChapterObjectId(String chapterId){
+		ObjectId found = LegacyIdResolver.getInstance().resolve(db, "chapters", chapterId);
+		if(found == null){
+			throw(new NotFoundException("This chapter was not found."));
+		}
+		return found;
+	}
+	
 	public Boolean deleteChapter(String chapterId){
 		Boolean ret = false;
 		try{
 			this.initMongo();
 			//Find the new id for this scope if this is an oldId
-			BasicDBObject q = new BasicDBObject();
-			if(ObjectId.isValid(chapterId)){
-				q.append("_id", new ObjectId(chapterId));
-			}else{
-				BasicDBObject idQuery = new BasicDBObject("oldId", chapterId);
-				DBCollection idColl = db.getCollection("chapters");
-				DBObject found = idColl.findOne(idQuery);	
-				if(found != null){
-					q.append("_id", found.get("_id"));
-				}else{
-					return false;
-				}
+			ObjectId found = LegacyIdResolver.getInstance().resolve(db, "chapters", chapterId);
+			if(found == null){
+				return false;
 			}
+			chapterId = found.toString();
+			BasicDBObject q = new BasicDBObject("_id", found);
 			
 			//Remove this chapter from all the places it is joined first
 			ArrayList<BasicDBObject> query = new ArrayList<BasicDBObject>();
@@ -756,17 +2643,25 @@ public class ChapterDAO extends DAO {
 			content.add(new BasicDBObject("scope", "chapters"));
 			
 			BasicDBObject join = new BasicDBObject("joins",  new BasicDBObject("$and",content));
-			BasicDBObject pullQuery = new BasicDBObject("$pull",  join);
+			BasicDBObject pullQuery = bumpVersion(new BasicDBObject("$pull",  join));
 			
 			DBCollection coll = db.getCollection("chapters");
 			
 			//Pull this join sub document from every chapter that contains it
+			checkQueryShape(coll, findQuery);
 			coll.update(findQuery, pullQuery,false,true);
+			ChapterCache.getInstance().invalidateJoinedTo(found);
 			
 			//Then delete the chapter
 			coll.remove(q);
+			ChapterCache.getInstance().invalidate(chapterId);
+			ChapterHierarchy.getInstance().removeChapter(found);
+			LegacyIdResolver.getInstance().forget("chapters", found);
 			
 			ret = true;
+		}catch(InternalErrorException e){
+			//A failed query shape check
+			throw(e);
 		}catch(Exception e){
 			e.printStackTrace();
 		}finally{
@@ -776,6 +2671,386 @@ public class ChapterDAO extends DAO {
 		return ret;
 	}
 	
+	/**
+	 * Deletes this scope from all the chapters it is joined to in the background
+	 * See ChapterRemovalJob, the job's progress can be followed with getRemovalJob
+	 * 
+	 * @param scopeId
+	 * @param scope Must be either "content" or "chapters"
+	 * @return the job, or the one that is already removing this scope
+	 */
+	public ChapterRemovalJob removeAllChaptersAsync(String scopeId, String scope){
+		if(!scope.equals("content") && !scope.equals("chapters")){
+			throw(new InternalErrorException("Scope must be either content or chapters."));
+		}
+		try{
+			this.initMongo();
+			ObjectId found = LegacyIdResolver.getInstance().resolve(db, scope, scopeId);
+			if(found == null){
+				throw(new NotFoundException("This " + scope + " was not found."));
+			}
+			return ChapterRemovalJob.submit(new ChapterRemovalJob(found, scope, false, removalBatchSize, removalBatchDelay));
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Deletes a chapter in the background, after it has been removed from every chapter it is joined to
+	 * See ChapterRemovalJob, the job's progress can be followed with getRemovalJob
+	 * 
+	 * @param chapterId
+	 * @return the job, or the one that is already deleting this chapter
+	 */
+	public ChapterRemovalJob deleteChapterAsync(String chapterId){
+		try{
+			this.initMongo();
+			ObjectId found = getChapterObjectId(chapterId);
+			return ChapterRemovalJob.submit(new ChapterRemovalJob(found, "chapters", true, removalBatchSize, removalBatchDelay));
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	/**
+	 * Looks up a job from removeAllChaptersAsync or deleteChapterAsync
+	 * 
+	 * @param jobId
+	 * @return the job, or null if it isn't known
+	 */
+	public static ChapterRemovalJob getRemovalJob(String jobId){
+		return ChapterRemovalJob.get(jobId);
+	}
+	
+	/**
+	 * Does the work of a ChapterRemovalJob, on the job's thread
+	 * 
+	 * @param job
+	 * @return true if the job finished, false if it was cancelled
+	 * @throws InternalErrorException if the scope was still joined to chapters after the last pass, the chapter isn't deleted then
+	 */
+	boolean runRemovalJob(ChapterRemovalJob job){
+		ObjectId scopeId = job.getScopeId();
+		String scope = job.getScope();
+		
+		ArrayList<BasicDBObject> query = new ArrayList<BasicDBObject>();
+		query.add(new BasicDBObject("joins._id", scopeId));
+		query.add(new BasicDBObject("joins.scope", scope));
+		BasicDBObject findQuery = new BasicDBObject("$and", query);
+		
+		ArrayList<BasicDBObject> content = new ArrayList<BasicDBObject>();
+		content.add(new BasicDBObject("_id", scopeId));
+		content.add(new BasicDBObject("scope", scope));
+		BasicDBObject pullQuery = bumpVersion(new BasicDBObject("$pull", new BasicDBObject("joins", new BasicDBObject("$and", content))));
+		
+		try{
+			this.initMongo();
+			DBCollection coll = db.getCollection("chapters");
+			checkQueryShape(coll, findQuery);
+			
+			//Go around again for anything that was joined while we were working, but not forever
+			for(int pass = 0; pass < 3; pass++){
+				//Only the ids, so the list stays small even for thousands of chapters
+				ArrayList<ObjectId> chapterIds = new ArrayList<ObjectId>();
+				DBCursor cur = coll.find(findQuery, new BasicDBObject("_id", 1));
+				try{
+					while(cur.hasNext()){
+						chapterIds.add((ObjectId) cur.next().get("_id"));
+					}
+				}finally{
+					cur.close();
+				}
+				if(chapterIds.isEmpty()){
+					break;
+				}
+				job.setTotal(job.getTotal() + chapterIds.size());
+				
+				for(int i = 0; i < chapterIds.size(); i += job.getBatchSize()){
+					if(job.isCancelled()){
+						return false;
+					}
+					List<ObjectId> batch = chapterIds.subList(i, Math.min(i + job.getBatchSize(), chapterIds.size()));
+					
+					BasicDBObject batchQuery = new BasicDBObject("_id", new BasicDBObject("$in", batch));
+					coll.update(batchQuery, pullQuery, false, true);
+					
+					for(ObjectId chapterId : batch){
+						ChapterCache.getInstance().invalidate(chapterId.toString());
+						if(scope.equals("chapters")){
+							ChapterHierarchy.getInstance().removeJoin(chapterId, scopeId);
+						}
+					}
+					job.addProcessed(batch.size());
+					
+					if(job.getBatchDelay() > 0){
+						try{
+							Thread.sleep(job.getBatchDelay());
+						}catch(InterruptedException e){
+							Thread.currentThread().interrupt();
+							return false;
+						}
+					}
+				}
+			}
+			
+			//Joins kept being added while we worked, leave the chapter where it is
+			if(coll.findOne(findQuery, new BasicDBObject("_id", 1)) != null){
+				throw(new InternalErrorException("The " + scope + " was still joined to chapters after every pass."));
+			}
+			
+			if(job.getDeleteChapter()){
+				coll.remove(new BasicDBObject("_id", scopeId));
+				ChapterCache.getInstance().invalidate(scopeId.toString());
+				ChapterHierarchy.getInstance().removeChapter(scopeId);
+			}
+			//Like removeAllChapters, this is usually on its way to being deleted
+			LegacyIdResolver.getInstance().forget(scope, scopeId);
+			return true;
+		}finally{
+			this.deInitMongo();
+		}
+	}
+	
+	//Makes sure a query uses an index when query shape checks are turned on
+	private void checkQueryShape(DBCollection coll, DBObject query){
+		if(queryShapeCheck != null){
+			ChapterIndexManager.checkQuery(coll, query, queryShapeCheck);
+		}
+	}
+	
+	//Updates a join that is already on a chapter, or adds it to the end if it isn't
+	//Updating an existing join takes one round trip, adding a new one takes two
+	//The $push only matches if the join isn't there yet, so two editors can never add the same join twice
+	//returns null if the chapter wasn't found
+	private ChapterJoin.Outcome addOrUpdateJoin(DBCollection coll, BasicDBObject chapterQuery, ObjectId scopeId, ChapterJoin join){
+		//If it is already joined update the join that is there
+		//We only want to update the fields that were sent to us, and only if one of them is different
+		BasicDBObject updateQuery = new BasicDBObject(chapterQuery);
+		updateQuery.append("joins", getJoinChangedMatch(scopeId, join));
+		if(coll.update(updateQuery, getJoinUpdate(join)).getN() > 0){
+			return ChapterJoin.Outcome.UPDATED;
+		}
+		
+		BasicDBObject pushQuery = new BasicDBObject(chapterQuery);
+		pushQuery.append("joins._id", new BasicDBObject("$ne", scopeId));
+		BasicDBObject content = new BasicDBObject("joins", getNewJoin(scopeId, join));
+		if(coll.update(pushQuery, bumpVersion(new BasicDBObject("$push", content))).getN() > 0){
+			return ChapterJoin.Outcome.ADDED;
+		}
+		
+		//Either the join already has these values, it was joined after the update looked, or the chapter isn't there
+		BasicDBObject joinedQuery = new BasicDBObject(chapterQuery);
+		joinedQuery.append("joins._id", scopeId);
+		DBObject found = coll.findOne(joinedQuery, new BasicDBObject("joins", new BasicDBObject("$elemMatch", new BasicDBObject("_id", scopeId))));
+		if(found == null){
+			return null;
+		}
+		List foundJoins = (List) found.get("joins");
+		if(foundJoins != null && !foundJoins.isEmpty() && applyJoinUpdate((DBObject) foundJoins.get(0), join)){
+			//Someone else joined it in between, with other values, so update it after all
+			if(coll.update(updateQuery, getJoinUpdate(join)).getN() > 0){
+				return ChapterJoin.Outcome.UPDATED;
+			}
+		}
+		return ChapterJoin.Outcome.UNCHANGED;
+	}
+	
+	//Looks at the chapter again after a bulk update that matched fewer joins than it had updates
+	//An update is FAILED if its join is gone or doesn't have the values it was sent with
+	//The same join can be updated more than once, only the last update says what it should be now
+	private void checkJoinUpdates(DBCollection coll, ObjectId id, List<ChapterJoin> joins, List<ObjectId> scopeIds, List<Integer> updated, List<ChapterJoin.Outcome> ret){
+		HashMap<ObjectId, DBObject> current = new HashMap<ObjectId, DBObject>();
+		DBObject chapter = coll.findOne(new BasicDBObject("_id", id), new BasicDBObject("joins", 1));
+		if(chapter != null && chapter.containsField("joins")){
+			for(Object o : (List) chapter.get("joins")){
+				current.put((ObjectId) ((DBObject) o).get("_id"), (DBObject) o);
+			}
+		}
+		
+		HashMap<ObjectId, ChapterJoin.Outcome> checked = new HashMap<ObjectId, ChapterJoin.Outcome>();
+		for(int k = updated.size() - 1; k >= 0; k--){
+			int i = updated.get(k);
+			if(ret.get(i) != ChapterJoin.Outcome.UPDATED){
+				continue;
+			}
+			ObjectId scopeId = scopeIds.get(i);
+			if(!checked.containsKey(scopeId)){
+				DBObject join = current.get(scopeId);
+				boolean inPlace = join != null && !applyJoinUpdate(new BasicDBObject(join.toMap()), joins.get(i));
+				checked.put(scopeId, inPlace ? ChapterJoin.Outcome.UPDATED : ChapterJoin.Outcome.FAILED);
+			}
+			ret.set(i, checked.get(scopeId));
+		}
+	}
+	
+	//returns where the join to scopeId is in a list of new joins, -1 if it isn't in it
+	private int newJoinIndex(BasicDBList newJoins, ObjectId scopeId){
+		for(int k = 0; k < newJoins.size(); k++){
+			if(scopeId.equals(((DBObject) newJoins.get(k)).get("_id"))){
+				return k;
+			}
+		}
+		return -1;
+	}
+	
+	//returns the match for a join that the update from getJoinUpdate would change
+	//so an update that wouldn't change anything matches nothing and doesn't bump the version
+	private BasicDBObject getJoinChangedMatch(ObjectId scopeId, ChapterJoin join){
+		BasicDBList changed = new BasicDBList();
+		if(!join.getScope().equals("")){
+			changed.add(new BasicDBObject("scope", new BasicDBObject("$ne", join.getScope())));
+		}
+		if(!join.getJoinType().equals("")){
+			changed.add(new BasicDBObject("joinType", new BasicDBObject("$ne", join.getJoinType())));
+		}
+		addFlagChangedMatch(changed, "featured", join.getFeatured());
+		addFlagChangedMatch(changed, "hide", join.getHide());
+		addFlagChangedMatch(changed, "isLCP", join.getIsLCP());
+		if(join.getLcpedFrom().length() > 0){
+			changed.add(new BasicDBObject("lcpedFrom", new BasicDBObject("$ne", join.getLcpedFrom())));
+		}else{
+			changed.add(new BasicDBObject("lcpedFrom", new BasicDBObject("$exists", true)));
+		}
+		
+		BasicDBObject match = new BasicDBObject("_id", scopeId);
+		match.append("$or", changed);
+		return new BasicDBObject("$elemMatch", match);
+	}
+	
+	//A flag of "1" is changed if it isn't set, "0" if it is set
+	private void addFlagChangedMatch(BasicDBList changed, String field, String flag){
+		if(flag.equals("1")){
+			changed.add(new BasicDBObject(field, new BasicDBObject("$ne", "1")));
+		}else if(flag.equals("0")){
+			changed.add(new BasicDBObject(field, new BasicDBObject("$exists", true)));
+		}
+	}
+	
+	//Makes the same changes getJoinUpdate does to a join we already read
+	//returns true if that changed anything
+	private boolean applyJoinUpdate(DBObject current, ChapterJoin join){
+		boolean changed = false;
+		if(!join.getScope().equals("")){
+			changed |= setJoinField(current, "scope", join.getScope());
+		}
+		if(!join.getJoinType().equals("")){
+			changed |= setJoinField(current, "joinType", join.getJoinType());
+		}
+		changed |= setJoinFlag(current, "featured", join.getFeatured());
+		changed |= setJoinFlag(current, "hide", join.getHide());
+		changed |= setJoinFlag(current, "isLCP", join.getIsLCP());
+		changed |= setJoinField(current, "lcpedFrom", join.getLcpedFrom().length() > 0 ? join.getLcpedFrom() : null);
+		return changed;
+	}
+	
+	//"1" sets the flag, "0" removes it, anything else leaves it alone
+	private boolean setJoinFlag(DBObject current, String field, String flag){
+		if(flag.equals("1")){
+			return setJoinField(current, field, "1");
+		}else if(flag.equals("0")){
+			return setJoinField(current, field, null);
+		}
+		return false;
+	}
+	
+	//Sets a field on a join we already read, null removes it
+	//returns true if it was different
+	private boolean setJoinField(DBObject current, String field, String value){
+		Object old = current.get(field);
+		if(value == null){
+			if(!current.containsField(field)){
+				return false;
+			}
+			current.removeField(field);
+			return true;
+		}
+		if(old != null && value.equals(old.toString())){
+			return false;
+		}
+		current.put(field, value);
+		return true;
+	}
+	
+	//returns the join sub document for a new join
+	private BasicDBObject getNewJoin(ObjectId scopeId, ChapterJoin join){
+		BasicDBObject contentDetails = new BasicDBObject("_id", scopeId);
+		contentDetails.append("scope", join.getScope());
+		contentDetails.append("joinType", join.getJoinType());
+		
+		if(join.getFeatured().equals("1")){
+			contentDetails.append("featured", "1");
+		}
+		
+		if(join.getHide().equals("1")){
+			contentDetails.append("hide", "1");
+		}
+		
+		if(join.getIsLCP().equals("1")){
+			contentDetails.append("isLCP", "1");
+		}
+		
+		if(join.getLcpedFrom().length() > 0){
+			contentDetails.append("lcpedFrom", join.getLcpedFrom());
+		}
+		
+		return contentDetails;
+	}
+	
+	//returns the update for a join that is already on a chapter
+	//@Note: The query needs to match the join on "joins._id" for the positional operator
+	private BasicDBObject getJoinUpdate(ChapterJoin join){
+		BasicDBObject removeFields = new BasicDBObject();
+		BasicDBObject contentDetails = new BasicDBObject();
+		if(!join.getScope().equals("")){
+			contentDetails.append("joins.$.scope", join.getScope());
+		}
+		if(!join.getJoinType().equals("")){
+			contentDetails.append("joins.$.joinType", join.getJoinType());
+		}
+		
+		if(join.getFeatured().equals("1")){
+			contentDetails.append("joins.$.featured", "1");
+		}else if(join.getFeatured().equals("0")){
+			removeFields.append("joins.$.featured", 1);
+		}
+		
+		if(join.getHide().equals("1")){
+			contentDetails.append("joins.$.hide", "1");
+		}else if(join.getHide().equals("0")){
+			removeFields.append("joins.$.hide", 1);
+		}
+		
+		if(join.getIsLCP().equals("1")){
+			contentDetails.append("joins.$.isLCP", "1");
+		}else if(join.getIsLCP().equals("0")){
+			removeFields.append("joins.$.isLCP", 1);
+		}
+		
+		if(join.getLcpedFrom().length() > 0){
+			contentDetails.append("joins.$.lcpedFrom", join.getLcpedFrom());
+		}else{
+			removeFields.append("joins.$.lcpedFrom", 1);
+		}
+		
+		//And now update and remove fields as nessasary
+		BasicDBObject sub = new BasicDBObject();
+		if(!contentDetails.isEmpty()){
+			sub.append("$set", contentDetails);
+		}
+		sub.append("$unset", removeFields);
+		return bumpVersion(sub);
+	}
+	
+	//returns the query that finds a chapter by its mongo id or by its oldId
+	private BasicDBObject getChapterQuery(String chapterId){
+		if(ObjectId.isValid(chapterId)){
+			return new BasicDBObject("_id", new ObjectId(chapterId));
+		}else{
+			//they may be looking for an oldId
+			return new BasicDBObject("oldId", chapterId);
+		}
+	}
+	
 	//returns a DB Object that can be passed as a field param for the find call
 	//@Note: Used when we use sub document project because if we specify a subdocument field
 	//       it will only return that sub document unless we specify all of the other fields aswell
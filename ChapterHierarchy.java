@@ -0,0 +1,508 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Chapter Hierarchy
+ *
+ * In memory index of which chapters are joined to which other chapters.
+ * Built from the chapters collection with load and kept up to date by the join changes in ChapterDAO.
+ *
+ * Every chapter gets a number, and the joins are kept as arrays of those numbers
+ * so walking up or down the tree never has to go to mongo.
+ *
+ * A chapter's parent is the first chapter it is joined to without "lcpedFrom",
+ * the same chapter getParentChapterForChapter finds. LCPed joins still count as children for descendants and cycles.
+ *
+ * A chapter that is no longer joined to or from any chapter gives its number back, and the next new chapter gets it,
+ * so the arrays only grow as big as the most chapters that were in the hierarchy at once.
+ *
+ * @note Only changes made through this process are seen, call load again to pick up everything else.
+ * 		 Changes made while load is running are kept and put on top of what it loaded.
+ *
+ * There is one shared hierarchy for every DAO, use getInstance()
+ */
+public class ChapterHierarchy {
+
+	private static final ChapterHierarchy instance = new ChapterHierarchy();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean loaded = false;
+	//The changes made while load is reading the chapters, null when it isn't
+	private ArrayList<Change> changesWhileLoading = null;
+
+	private HashMap<ObjectId, Integer> indexes = new HashMap<ObjectId, Integer>();
+	private ObjectId[] ids = new ObjectId[16];
+	//The numbers handed out so far, some of them may be free
+	private int size = 0;
+	//The numbers of chapters that were taken out, to hand out again before a new one
+	private int[] free = new int[16];
+	private int freeCount = 0;
+
+	//children[i] holds the chapters joined to chapter i, in the first childCount[i] spots
+	private int[][] children = new int[16][];
+	private int[] childCount = new int[16];
+	//parents[i] holds the chapters chapter i is joined to, shifted left one with the low bit set for LCPed joins
+	private int[][] parents = new int[16][];
+	private int[] parentCount = new int[16];
+
+	public static ChapterHierarchy getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Builds the hierarchy from every chapter in mongo
+	 *
+	 * @param db
+	 */
+	public synchronized void load(DB db){
+		lock.writeLock().lock();
+		try{
+			changesWhileLoading = new ArrayList<Change>();
+		}finally{
+			lock.writeLock().unlock();
+		}
+
+		try{
+			swap(read(db));
+		}finally{
+			lock.writeLock().lock();
+			try{
+				changesWhileLoading = null;
+			}finally{
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	//Reads every chapter that has chapters joined to it into a new hierarchy
+	private static ChapterHierarchy read(DB db){
+		ChapterHierarchy fresh = new ChapterHierarchy();
+		fresh.loaded = true;
+
+		BasicDBObject query = new BasicDBObject("joins.scope", "chapters");
+		BasicDBObject fields = new BasicDBObject("joins._id", 1);
+		fields.append("joins.scope", 1);
+		fields.append("joins.lcpedFrom", 1);
+
+		DBCursor cur = db.getCollection("chapters").find(query, fields);
+		try{
+			while(cur.hasNext()){
+				DBObject chapter = cur.next();
+				ObjectId parent = (ObjectId) chapter.get("_id");
+				for(Object o : (List) chapter.get("joins")){
+					DBObject join = (DBObject) o;
+					if("chapters".equals(join.get("scope")) && join.get("_id") instanceof ObjectId){
+						fresh.link(parent, (ObjectId) join.get("_id"), join.containsField("lcpedFrom"));
+					}
+				}
+			}
+		}finally{
+			cur.close();
+		}
+		return fresh;
+	}
+
+	//Puts a freshly read hierarchy in place, with the changes made while it was being read on top
+	private void swap(ChapterHierarchy fresh){
+		lock.writeLock().lock();
+		try{
+			//The reads and these changes overlapped, replaying them puts every change after the read it may have missed
+			for(Change change : changesWhileLoading){
+				change.applyTo(fresh);
+			}
+			indexes = fresh.indexes;
+			ids = fresh.ids;
+			size = fresh.size;
+			free = fresh.free;
+			freeCount = fresh.freeCount;
+			children = fresh.children;
+			childCount = fresh.childCount;
+			parents = fresh.parents;
+			parentCount = fresh.parentCount;
+			loaded = true;
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isLoaded(){
+		lock.readLock().lock();
+		try{
+			return loaded;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	//
+	// Changes, called by ChapterDAO after the write
+	//
+
+	/**
+	 * A chapter was joined to another chapter, or its join was changed
+	 *
+	 * @param parent
+	 * @param child
+	 * @param lcped true if the join has "lcpedFrom"
+	 */
+	public void addJoin(ObjectId parent, ObjectId child, boolean lcped){
+		lock.writeLock().lock();
+		try{
+			record(new Change(Change.Type.ADD, parent, child, lcped));
+			if(loaded){
+				link(parent, child, lcped);
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * A chapter was removed from another chapter
+	 *
+	 * @param parent
+	 * @param child
+	 */
+	public void removeJoin(ObjectId parent, ObjectId child){
+		lock.writeLock().lock();
+		try{
+			record(new Change(Change.Type.REMOVE, parent, child, false));
+			Integer p = indexes.get(parent);
+			Integer c = indexes.get(child);
+			if(p != null && c != null){
+				unlink(p, c);
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * A chapter was removed from every chapter it was joined to
+	 *
+	 * @param child
+	 */
+	public void removeAllJoinsTo(ObjectId child){
+		lock.writeLock().lock();
+		try{
+			record(new Change(Change.Type.REMOVE_ALL_TO, null, child, false));
+			Integer c = indexes.get(child);
+			if(c != null){
+				while(parentCount[c] > 0){
+					unlink(parents[c][0] >> 1, c);
+				}
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * A chapter was deleted
+	 *
+	 * @param chapter
+	 */
+	public void removeChapter(ObjectId chapter){
+		lock.writeLock().lock();
+		try{
+			record(new Change(Change.Type.REMOVE_CHAPTER, null, chapter, false));
+			Integer c = indexes.get(chapter);
+			if(c != null){
+				while(parentCount[c] > 0){
+					unlink(parents[c][0] >> 1, c);
+				}
+				while(childCount[c] > 0){
+					unlink(c, children[c][0]);
+				}
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	//
+	// Queries
+	//
+
+	/**
+	 * Gets the parent of a chapter
+	 *
+	 * @param chapter
+	 * @return the first chapter this one is joined to without lcpedFrom, or null if there is none
+	 */
+	public ObjectId getParent(ObjectId chapter){
+		lock.readLock().lock();
+		try{
+			Integer c = indexes.get(chapter);
+			if(c == null){
+				return null;
+			}
+			int p = getParentIndex(c);
+			return p < 0 ? null : ids[p];
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets every parent of a chapter going up, nearest first
+	 *
+	 * @param chapter
+	 * @return
+	 */
+	public ArrayList<ObjectId> getAncestors(ObjectId chapter){
+		ArrayList<ObjectId> ret = new ArrayList<ObjectId>();
+		lock.readLock().lock();
+		try{
+			Integer c = indexes.get(chapter);
+			if(c == null){
+				return ret;
+			}
+			boolean[] seen = new boolean[size];
+			seen[c] = true;
+			for(int p = getParentIndex(c); p >= 0 && !seen[p]; p = getParentIndex(p)){
+				seen[p] = true;
+				ret.add(ids[p]);
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets every chapter under a chapter, nearest first
+	 *
+	 * @param chapter
+	 * @return
+	 */
+	public ArrayList<ObjectId> getDescendants(ObjectId chapter){
+		ArrayList<ObjectId> ret = new ArrayList<ObjectId>();
+		lock.readLock().lock();
+		try{
+			Integer c = indexes.get(chapter);
+			if(c == null){
+				return ret;
+			}
+			int[] found = walkDown(c);
+			//The first one is the chapter itself
+			for(int i = 1; i < found.length; i++){
+				ret.add(ids[found[i]]);
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks whether joining a chapter to another chapter would put the parent inside its own subtree
+	 *
+	 * @param parent
+	 * @param child
+	 * @return true if the join would create a cycle
+	 */
+	public boolean wouldCreateCycle(ObjectId parent, ObjectId child){
+		if(parent.equals(child)){
+			return true;
+		}
+		lock.readLock().lock();
+		try{
+			Integer p = indexes.get(parent);
+			Integer c = indexes.get(child);
+			if(p == null || c == null){
+				return false;
+			}
+			for(int i : walkDown(c)){
+				if(i == p){
+					return true;
+				}
+			}
+			return false;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	//returns the number of chapters in the hierarchy
+	public int getSize(){
+		lock.readLock().lock();
+		try{
+			return indexes.size();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	//Breadth first walk down from a chapter, returns it and everything under it
+	private int[] walkDown(int start){
+		boolean[] seen = new boolean[size];
+		int[] queue = new int[16];
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		seen[start] = true;
+		while(head < tail){
+			int i = queue[head++];
+			for(int k = 0; k < childCount[i]; k++){
+				int child = children[i][k];
+				if(!seen[child]){
+					seen[child] = true;
+					if(tail == queue.length){
+						queue = Arrays.copyOf(queue, tail * 2);
+					}
+					queue[tail++] = child;
+				}
+			}
+		}
+		return Arrays.copyOf(queue, tail);
+	}
+
+	private int getParentIndex(int c){
+		for(int k = 0; k < parentCount[c]; k++){
+			if((parents[c][k] & 1) == 0){
+				return parents[c][k] >> 1;
+			}
+		}
+		return -1;
+	}
+
+	private int getIndex(ObjectId id){
+		Integer i = indexes.get(id);
+		if(i != null){
+			return i;
+		}
+		if(freeCount > 0){
+			int slot = free[--freeCount];
+			ids[slot] = id;
+			indexes.put(id, slot);
+			return slot;
+		}
+		if(size == ids.length){
+			int length = size * 2;
+			ids = Arrays.copyOf(ids, length);
+			children = Arrays.copyOf(children, length);
+			childCount = Arrays.copyOf(childCount, length);
+			parents = Arrays.copyOf(parents, length);
+			parentCount = Arrays.copyOf(parentCount, length);
+		}
+		ids[size] = id;
+		indexes.put(id, size);
+		return size++;
+	}
+
+	//Adds or updates the join from parent to child
+	private void link(ObjectId parent, ObjectId child, boolean lcped){
+		int p = getIndex(parent);
+		int c = getIndex(child);
+		int edge = (p << 1) | (lcped ? 1 : 0);
+
+		for(int k = 0; k < parentCount[c]; k++){
+			if((parents[c][k] >> 1) == p){
+				parents[c][k] = edge;
+				return;
+			}
+		}
+
+		children[p] = append(children[p], childCount[p]++, c);
+		parents[c] = append(parents[c], parentCount[c]++, edge);
+	}
+
+	private void unlink(int p, int c){
+		for(int k = 0; k < childCount[p]; k++){
+			if(children[p][k] == c){
+				//Keep the order so the first parent stays the first parent
+				System.arraycopy(children[p], k + 1, children[p], k, childCount[p] - k - 1);
+				childCount[p]--;
+				break;
+			}
+		}
+		for(int k = 0; k < parentCount[c]; k++){
+			if((parents[c][k] >> 1) == p){
+				System.arraycopy(parents[c], k + 1, parents[c], k, parentCount[c] - k - 1);
+				parentCount[c]--;
+				break;
+			}
+		}
+		release(p);
+		release(c);
+	}
+
+	//Gives a chapter's number back once nothing is joined to or from it
+	private void release(int i){
+		if(ids[i] == null || childCount[i] > 0 || parentCount[i] > 0){
+			return;
+		}
+		indexes.remove(ids[i]);
+		ids[i] = null;
+		children[i] = null;
+		parents[i] = null;
+		free = append(free, freeCount++, i);
+	}
+
+	//Keeps a change for the load that is running, if there is one
+	//@Note: has to be called holding the write lock
+	private void record(Change change){
+		if(changesWhileLoading != null){
+			changesWhileLoading.add(change);
+		}
+	}
+
+	private static int[] append(int[] list, int at, int value){
+		if(list == null){
+			list = new int[2];
+		}else if(at == list.length){
+			list = Arrays.copyOf(list, at * 2);
+		}
+		list[at] = value;
+		return list;
+	}
+
+	/**
+	 * A change made while load was running
+	 */
+	private static class Change {
+		enum Type {
+			ADD,
+			REMOVE,
+			REMOVE_ALL_TO,
+			REMOVE_CHAPTER
+		}
+
+		final Type type;
+		final ObjectId parent;
+		final ObjectId child;
+		final boolean lcped;
+
+		Change(Type type, ObjectId parent, ObjectId child, boolean lcped){
+			this.type = type;
+			this.parent = parent;
+			this.child = child;
+			this.lcped = lcped;
+		}
+
+		void applyTo(ChapterHierarchy hierarchy){
+			if(type == Type.ADD){
+				hierarchy.addJoin(parent, child, lcped);
+			}else if(type == Type.REMOVE){
+				hierarchy.removeJoin(parent, child);
+			}else if(type == Type.REMOVE_ALL_TO){
+				hierarchy.removeAllJoinsTo(child);
+			}else{
+				hierarchy.removeChapter(child);
+			}
+		}
+	}
+}
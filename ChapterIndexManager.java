@@ -0,0 +1,207 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import net.javs.exceptions.InternalErrorException;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Chapter Index Manager
+ *
+ * Declares the indexes that the queries in ChapterDAO need, and creates or checks them at startup.
+ *
+ * "chapters"         oldId                        legacy id lookups
+ *                    joins._id, joins.scope       finding every chapter a scope is joined to (multikey),
+ *                                                 also used by the $elemMatch on joins in getParentChapterForChapter
+ * "content"          oldId                        legacy id lookups
+ * "content_versions" contentId, status, type      the published versions of the content joined to a chapter
+ *
+ * The chapters lookup on _id and adminOnly is already covered by the _id index.
+ *
+ * It can also check a single query with explain, so a query shape that ends up scanning
+ * a whole collection can be warned about or fail instead of quietly running in production.
+ */
+public class ChapterIndexManager {
+
+	/**
+	 * What to do about a missing index
+	 */
+	public enum Mode {
+		//Create missing indexes
+		CREATE,
+		//Only report missing indexes, see getUnindexedQueries for the queries
+		WARN,
+		//Throw an InternalErrorException for missing indexes
+		FAIL
+	}
+
+	private static final ArrayList<Index> indexes = new ArrayList<Index>();
+
+	//How many of the unindexed queries to remember
+	private static final int maxUnindexedQueries = 100;
+	private static final LinkedHashSet<String> unindexedQueries = new LinkedHashSet<String>();
+
+	static{
+		indexes.add(new Index("chapters", new BasicDBObject("oldId", 1), true));
+		indexes.add(new Index("chapters", new BasicDBObject("joins._id", 1).append("joins.scope", 1), false));
+		indexes.add(new Index("content", new BasicDBObject("oldId", 1), true));
+		//The versions are read newest first, so the date comes before the type that is only ever a $ne
+		indexes.add(new Index("content_versions", new BasicDBObject("contentId", 1).append("status", 1).append("publishedDate", -1).append("type", 1), false));
+	}
+
+	/**
+	 * Makes sure every index ChapterDAO needs is there
+	 *
+	 * @param db
+	 * @param mode
+	 * @return a description of each index that was missing
+	 */
+	public static ArrayList<String> ensureIndexes(DB db, Mode mode){
+		ArrayList<String> missing = new ArrayList<String>();
+		for(Index index : indexes){
+			DBCollection coll = db.getCollection(index.collection);
+			if(!hasIndex(coll, index.keys)){
+				missing.add(index.toString());
+				if(mode == Mode.CREATE){
+					BasicDBObject options = new BasicDBObject("background", true);
+					if(index.sparse){
+						options.append("sparse", true);
+					}
+					coll.createIndex(index.keys, options);
+				}
+			}
+		}
+
+		if(!missing.isEmpty() && mode == Mode.FAIL){
+			throw(new InternalErrorException("Missing chapter indexes: " + missing));
+		}
+		return missing;
+	}
+
+	/**
+	 * Checks whether mongo would scan the whole collection to run this query
+	 *
+	 * @param coll
+	 * @param query
+	 * @param mode WARN remembers the query for getUnindexedQueries and FAIL throws an InternalErrorException when it isn't indexed
+	 * @return true if the query uses an index
+	 */
+	public static boolean checkQuery(DBCollection coll, DBObject query, Mode mode){
+		DBObject plan = coll.find(query).explain();
+		if(!isCollectionScan(plan)){
+			return true;
+		}
+
+		String message = "Query on " + coll.getName() + " is not indexed: " + query;
+		if(mode == Mode.FAIL){
+			throw(new InternalErrorException(message));
+		}
+		synchronized(unindexedQueries){
+			unindexedQueries.add(message);
+			//Forget the oldest ones
+			Iterator<String> it = unindexedQueries.iterator();
+			while(unindexedQueries.size() > maxUnindexedQueries){
+				it.next();
+				it.remove();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the most recent queries checkQuery found weren't indexed, oldest first
+	 */
+	public static List<String> getUnindexedQueries(){
+		synchronized(unindexedQueries){
+			return new ArrayList<String>(unindexedQueries);
+		}
+	}
+
+	public static List<String> getRequiredIndexes(){
+		ArrayList<String> ret = new ArrayList<String>();
+		for(Index index : indexes){
+			ret.add(index.toString());
+		}
+		return ret;
+	}
+
+	private static boolean hasIndex(DBCollection coll, DBObject keys){
+		for(DBObject info : coll.getIndexInfo()){
+			Object key = info.get("key");
+			if(key instanceof DBObject && sameKeys((DBObject) key, keys)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Same fields in the same order with the same directions
+	//The shell and most tools store 1.0 for a direction where we have 1, so numbers are compared by value
+	private static boolean sameKeys(DBObject found, DBObject keys){
+		ArrayList<String> foundFields = new ArrayList<String>(found.keySet());
+		ArrayList<String> fields = new ArrayList<String>(keys.keySet());
+		if(!foundFields.equals(fields)){
+			return false;
+		}
+		for(String field : fields){
+			Object a = found.get(field);
+			Object b = keys.get(field);
+			if(a instanceof Number && b instanceof Number){
+				if(((Number) a).doubleValue() != ((Number) b).doubleValue()){
+					return false;
+				}
+			}else if(a == null || !a.equals(b)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//Looks through an explain for a collection scan
+	//Older servers say "BasicCursor", newer ones have a "COLLSCAN" stage somewhere in the plan
+	private static boolean isCollectionScan(Object plan){
+		if(plan instanceof DBObject){
+			Map m = ((DBObject) plan).toMap();
+			if("BasicCursor".equals(m.get("cursor")) || "COLLSCAN".equals(m.get("stage"))){
+				return true;
+			}
+			//Only look at the plan that was picked
+			for(Object key : m.keySet()){
+				if(!"rejectedPlans".equals(key) && !"allPlans".equals(key) && isCollectionScan(m.get(key))){
+					return true;
+				}
+			}
+		}else if(plan instanceof List){
+			for(Object o : (List) plan){
+				if(isCollectionScan(o)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static class Index {
+		String collection;
+		BasicDBObject keys;
+		boolean sparse;
+
+		Index(String collection, BasicDBObject keys, boolean sparse){
+			this.collection = collection;
+			this.keys = keys;
+			this.sparse = sparse;
+		}
+
+		public String toString(){
+			return collection + " " + keys;
+		}
+	}
+}
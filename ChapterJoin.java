@@ -0,0 +1,123 @@
+package net.javs.dao.chapters;
+
+/**
+ * Chapter Join
+ *
+ * One piece of content or chapter to join to a chapter.
+ * Holds the same values that are passed to ChapterDAO.addContentToChapter so many of them can be added at once.
+ *
+ * "scope"     Must be either "content" or "chapters"
+ * "joinType"  Must be either "primary" or "selected"
+ * "featured", "hide" and "isLCP" are "1" to set them, "0" to remove them, anything else leaves them alone
+ * "lcpedFrom" is the book id this scope was LCPed from, an empty string removes it
+ */
+public class ChapterJoin {
+
+	/**
+	 * What happened to a join when it was saved
+	 */
+	public enum Outcome {
+		//A new join was added to the end of the chapter
+		ADDED,
+		//The join was already on the chapter and was updated
+		UPDATED,
+		//The join was already on the chapter with these values, nothing was written
+		UNCHANGED,
+		//The content or chapter being joined could not be found
+		NOT_FOUND,
+		//The scope was not "content" or "chapters"
+		INVALID,
+		//Joining this chapter would put the chapter inside its own subtree
+		CYCLE,
+		//The write failed
+		FAILED
+	}
+
+	private String scopeId;
+	private String scope;
+	private String joinType;
+	private String featured;
+	private String hide;
+	private String isLCP;
+	private String lcpedFrom;
+
+	public ChapterJoin(){
+		this.scopeId = "";
+		this.scope = "";
+		this.joinType = "";
+		this.featured = "";
+		this.hide = "";
+		this.isLCP = "";
+		this.lcpedFrom = "";
+	}
+
+	public ChapterJoin(String scopeId, String scope, String joinType,String featured, String hide, String isLCP,String lcpedFrom){
+		this.scopeId = scopeId;
+		this.scope = scope;
+		this.joinType = joinType;
+		this.featured = featured;
+		this.hide = hide;
+		this.isLCP = isLCP;
+		this.lcpedFrom = lcpedFrom;
+	}
+
+	//
+	// Setters and getters
+	//
+
+	public String getScopeId(){
+		return this.scopeId;
+	}
+
+	public void setScopeId(String scopeId){
+		this.scopeId = scopeId;
+	}
+
+	public String getScope(){
+		return this.scope;
+	}
+
+	public void setScope(String scope){
+		this.scope = scope;
+	}
+
+	public String getJoinType(){
+		return this.joinType;
+	}
+
+	public void setJoinType(String joinType){
+		this.joinType = joinType;
+	}
+
+	public String getFeatured(){
+		return this.featured;
+	}
+
+	public void setFeatured(String featured){
+		this.featured = featured;
+	}
+
+	public String getHide(){
+		return this.hide;
+	}
+
+	public void setHide(String hide){
+		this.hide = hide;
+	}
+
+	public String getIsLCP(){
+		return this.isLCP;
+	}
+
+	public void setIsLCP(String isLCP){
+		this.isLCP = isLCP;
+	}
+
+	public String getLcpedFrom(){
+		return this.lcpedFrom;
+	}
+
+	public void setLcpedFrom(String lcpedFrom){
+		this.lcpedFrom = lcpedFrom;
+	}
+}
@@ -0,0 +1,105 @@
+package net.javs.dao.chapters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Map;
+
+import net.javs.exceptions.InternalErrorException;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Chapter Page
+ *
+ * One page of what is joined to a chapter, and the token to get the page after it.
+ *
+ * The token holds the id of the last join on the page and where it was in the joins array.
+ * The next page starts right after that join wherever it is now, so joins added or removed
+ * in front of it don't shift the pages. If the join itself was removed the next page starts
+ * where it used to be.
+ *
+ * Tokens are URL safe Base64 and are meant to be passed back as they are, what is in them may change.
+ */
+public class ChapterPage {
+
+	private final ArrayList<Map> items;
+	private final String nextToken;
+
+	public ChapterPage(ArrayList<Map> items, String nextToken){
+		this.items = items;
+		this.nextToken = nextToken;
+	}
+
+	public ArrayList<Map> getItems(){
+		return this.items;
+	}
+
+	/**
+	 * @return the token for the next page, or null if this is the last page
+	 */
+	public String getNextToken(){
+		return this.nextToken;
+	}
+
+	public boolean hasMore(){
+		return this.nextToken != null;
+	}
+
+	/**
+	 * Makes the token for the page after a join
+	 *
+	 * @param joinId The id of the last join on the page
+	 * @param index Where that join was in the joins array
+	 * @return
+	 */
+	public static String getToken(ObjectId joinId, int index){
+		String token = joinId.toString() + "-" + Integer.toString(index, 36);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Gets the join id out of a token
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static ObjectId getTokenJoinId(String token){
+		String id = splitToken(token)[0];
+		if(!ObjectId.isValid(id)){
+			throw(new InternalErrorException("That page token is not valid."));
+		}
+		return new ObjectId(id);
+	}
+
+	/**
+	 * Gets the joins array index out of a token
+	 *
+	 * @param token
+	 * @return
+	 */
+	public static int getTokenIndex(String token){
+		try{
+			int index = Integer.parseInt(splitToken(token)[1], 36);
+			if(index >= 0){
+				return index;
+			}
+		}catch(NumberFormatException e){
+
+		}
+		throw(new InternalErrorException("That page token is not valid."));
+	}
+
+	private static String[] splitToken(String token){
+		String[] parts;
+		try{
+			parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("-");
+		}catch(IllegalArgumentException e){
+			throw(new InternalErrorException("That page token is not valid."));
+		}
+		if(parts.length != 2){
+			throw(new InternalErrorException("That page token is not valid."));
+		}
+		return parts;
+	}
+}
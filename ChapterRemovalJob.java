@@ -0,0 +1,238 @@
+package net.javs.dao.chapters;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Chapter Removal Job
+ *
+ * Removes a piece of content or a chapter from every chapter it is joined to in the background,
+ * for ChapterDAO.removeAllChaptersAsync and ChapterDAO.deleteChapterAsync.
+ *
+ * The chapters it is joined to are found first, then the join is pulled from them a batch at a time
+ * with a pause between batches, so a scope that is joined to thousands of chapters doesn't hold a request
+ * or hit the primary with one huge write. Each batch is taken out of the ChapterCache and ChapterHierarchy as soon as it is written.
+ *
+ * Only a couple of jobs run at once, the rest wait their turn.
+ * Jobs are kept so their progress can be looked up with get, the oldest finished ones are dropped after a while.
+ */
+public class ChapterRemovalJob implements Runnable {
+
+	/**
+	 * Where a job is at
+	 */
+	public enum Status {
+		//Waiting for a thread
+		QUEUED,
+		//Pulling the joins
+		RUNNING,
+		//Every join was removed (and the chapter was deleted)
+		DONE,
+		//Stopped on an error, or joins were still left after the last pass, see getError
+		FAILED,
+		//Stopped by cancel, the batches that were done stay done
+		CANCELLED
+	}
+
+	//How many jobs can run at the same time
+	private static final int maxRunning = 2;
+	//How many jobs to remember
+	private static final int maxKept = 1000;
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(maxRunning, new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "chapter-removal");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	//Every job we know about, oldest first
+	private static final LinkedHashMap<String, ChapterRemovalJob> jobs = new LinkedHashMap<String, ChapterRemovalJob>();
+
+	private final String id;
+	private final ObjectId scopeId;
+	private final String scope;
+	private final boolean deleteChapter;
+	private final int batchSize;
+	private final long batchDelay;
+
+	private volatile Status status = Status.QUEUED;
+	private volatile boolean cancelled = false;
+	private volatile String error = null;
+	private volatile int total = 0;
+	private final AtomicInteger processed = new AtomicInteger();
+	private final long created;
+	private volatile long finished = 0;
+
+	/**
+	 * @param scopeId The mongo id of the content or chapter to remove
+	 * @param scope Must be either "content" or "chapters"
+	 * @param deleteChapter true to delete the chapter itself once it is out of every chapter
+	 * @param batchSize How many chapters to pull the join from in one write
+	 * @param batchDelay How long to wait between batches, in milliseconds
+	 */
+	ChapterRemovalJob(ObjectId scopeId, String scope, boolean deleteChapter, int batchSize, long batchDelay){
+		this.id = new ObjectId().toString();
+		this.scopeId = scopeId;
+		this.scope = scope;
+		this.deleteChapter = deleteChapter;
+		this.batchSize = batchSize;
+		this.batchDelay = batchDelay;
+		this.created = System.currentTimeMillis();
+	}
+
+	/**
+	 * Queues a job, unless the same removal is already queued or running
+	 * A job that was cancelled doesn't count even if it hasn't stopped yet
+	 *
+	 * @param job
+	 * @return the job that will do the removal
+	 */
+	static ChapterRemovalJob submit(ChapterRemovalJob job){
+		synchronized(jobs){
+			for(ChapterRemovalJob other : jobs.values()){
+				if(!other.isFinished() && !other.isCancelled() && other.scopeId.equals(job.scopeId) && other.scope.equals(job.scope) && other.deleteChapter == job.deleteChapter){
+					return other;
+				}
+			}
+			jobs.put(job.id, job);
+			dropFinished();
+		}
+		executor.submit(job);
+		return job;
+	}
+
+	/**
+	 * Looks up a job
+	 *
+	 * @param jobId
+	 * @return the job, or null if we don't know about it (anymore)
+	 */
+	public static ChapterRemovalJob get(String jobId){
+		synchronized(jobs){
+			return jobs.get(jobId);
+		}
+	}
+
+	public void run(){
+		if(cancelled){
+			finish(Status.CANCELLED);
+			return;
+		}
+		status = Status.RUNNING;
+		try{
+			//Every job gets its own DAO since a DAO holds its connection
+			boolean done = new ChapterDAO().runRemovalJob(this);
+			finish(done ? Status.DONE : Status.CANCELLED);
+		}catch(Exception e){
+			e.printStackTrace();
+			error = e.toString();
+			finish(Status.FAILED);
+		}
+	}
+
+	/**
+	 * Stops the job before its next batch
+	 * The joins that were already pulled stay pulled
+	 */
+	public void cancel(){
+		cancelled = true;
+	}
+
+	public boolean isCancelled(){
+		return this.cancelled;
+	}
+
+	public boolean isFinished(){
+		return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+	}
+
+	//
+	// Progress, updated by ChapterDAO.runRemovalJob
+	//
+
+	void setTotal(int total){
+		this.total = total;
+	}
+
+	void addProcessed(int count){
+		processed.addAndGet(count);
+	}
+
+	//
+	// Getters
+	//
+
+	public String getId(){
+		return this.id;
+	}
+
+	public ObjectId getScopeId(){
+		return this.scopeId;
+	}
+
+	public String getScope(){
+		return this.scope;
+	}
+
+	public boolean getDeleteChapter(){
+		return this.deleteChapter;
+	}
+
+	public int getBatchSize(){
+		return this.batchSize;
+	}
+
+	public long getBatchDelay(){
+		return this.batchDelay;
+	}
+
+	public Status getStatus(){
+		return this.status;
+	}
+
+	public String getError(){
+		return this.error;
+	}
+
+	//The number of chapters the join was found on, 0 until they have been found
+	public int getTotal(){
+		return this.total;
+	}
+
+	//The number of chapters the join has been pulled from so far
+	public int getProcessed(){
+		return processed.get();
+	}
+
+	public long getCreated(){
+		return this.created;
+	}
+
+	//When the job finished, 0 if it hasn't
+	public long getFinished(){
+		return this.finished;
+	}
+
+	private void finish(Status status){
+		this.finished = System.currentTimeMillis();
+		this.status = status;
+	}
+
+	//Forgets the oldest finished jobs once there are too many
+	private static void dropFinished(){
+		Iterator<ChapterRemovalJob> it = jobs.values().iterator();
+		while(jobs.size() > maxKept && it.hasNext()){
+			if(it.next().isFinished()){
+				it.remove();
+			}
+		}
+	}
+}
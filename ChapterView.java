@@ -0,0 +1,123 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * Chapter View
+ *
+ * A chapter and the joins that were read for it, in join order.
+ * Only joins with an "_id" and "scope" are kept, and a join that is on the chapter twice only shows up once.
+ */
+public class ChapterView {
+
+	private String id;
+	private String oldId;
+	private String name;
+	private String shortName;
+	private String imageId;
+	private String adminOnly;
+	private ArrayList<JoinEntry> joins;
+
+	private ChapterView(){
+
+	}
+
+	/**
+	 * Reads a chapter document, or a chapter with only a window of its joins
+	 *
+	 * @param chapter
+	 * @return
+	 */
+	public static ChapterView fromChapter(DBObject chapter){
+		ChapterView v = new ChapterView();
+		v.id = chapter.get("_id").toString();
+		v.oldId = getString(chapter, "oldId");
+		v.name = getString(chapter, "name");
+		v.shortName = getString(chapter, "shortName");
+		v.imageId = getString(chapter, "imageId");
+		v.adminOnly = getString(chapter, "adminOnly");
+
+		//Keyed on the join id so the first spot is kept
+		LinkedHashMap<String, JoinEntry> ordered = new LinkedHashMap<String, JoinEntry>();
+		Object joins = chapter.get("joins");
+		if(joins instanceof List){
+			for(Object o : (List) joins){
+				DBObject join = (DBObject) o;
+				if(join.containsField("_id") && join.containsField("scope")){
+					ordered.put(join.get("_id").toString(), new JoinEntry(join));
+				}
+			}
+		}
+		v.joins = new ArrayList<JoinEntry>(ordered.values());
+		return v;
+	}
+
+	/**
+	 * The joins as the maps getContentForAChapter returns
+	 *
+	 * @return
+	 */
+	public ArrayList<Map> getJoinMaps(){
+		ArrayList<Map> ret = new ArrayList<Map>();
+		for(JoinEntry join : joins){
+			ret.add(join.toMap());
+		}
+		return ret;
+	}
+
+	//
+	// Getters
+	//
+
+	public String getId(){
+		return this.id;
+	}
+
+	public String getOldId(){
+		return this.oldId;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public String getShortName(){
+		return this.shortName;
+	}
+
+	public String getImageId(){
+		return this.imageId;
+	}
+
+	public String getAdminOnly(){
+		return this.adminOnly;
+	}
+
+	public ArrayList<JoinEntry> getJoins(){
+		return this.joins;
+	}
+
+	/**
+	 * True when a lookup ran out of time, see JoinEntry.isIncomplete
+	 *
+	 * @return
+	 */
+	public boolean isIncomplete(){
+		for(JoinEntry join : joins){
+			if(join.isIncomplete()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getString(DBObject obj, String field){
+		Object value = obj.get(field);
+		return value == null ? null : value.toString();
+	}
+}
@@ -0,0 +1,243 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * Content Summary
+ *
+ * The few fields of a piece of content or a chapter that we show for a join,
+ * read one field at a time from a published content version or a chapter.
+ * Fields that were not on the document are left null.
+ *
+ * The documents are decoded by the driver as usual, this only gives the fields types and names,
+ * it doesn't make reading a chapter any cheaper.
+ */
+public class ContentSummary {
+
+	private String id;
+	private String title;
+	private String type;
+	private Object publishedDate;
+	private Object body;
+	private Object users;
+	private Object costs;
+	private String excerpt;
+	private String shortName;
+	private String imageId;
+	private String lcpCopyOfChapter;
+	private String lcpLiveUpdates;
+	private List<String> joinScopes;
+
+	//How long an excerpt made from the body can be
+	public static final int excerptLength = 200;
+	//How much of the body to read to make one, the tags in it take up room as well
+	public static final int excerptSourceLength = 2000;
+
+	private ContentSummary(){
+
+	}
+
+	/**
+	 * Reads the summary from a content version
+	 * When it doesn't have an "excerpt" but has an "excerptSource", the start of its body, the excerpt is made from that
+	 *
+	 * @param version
+	 * @return
+	 */
+	public static ContentSummary fromContentVersion(DBObject version){
+		ContentSummary s = new ContentSummary();
+		s.id = version.get("contentId").toString();
+		s.title = getString(version, "title");
+		s.type = getString(version, "type");
+		s.publishedDate = version.get("publishedDate");
+		s.body = version.get("body");
+		s.users = version.get("users");
+		s.costs = version.get("costs");
+		s.excerpt = getString(version, "excerpt");
+		if(s.excerpt == null){
+			s.excerpt = makeExcerpt(version.get("excerptSource"));
+		}
+		return s;
+	}
+
+	/**
+	 * Makes an excerpt from the body of a content version
+	 * The tags are taken out and it is cut at a space before excerptLength
+	 *
+	 * @param body The body, or the start of it
+	 * @return the excerpt, or null if the body isn't text or has none
+	 */
+	public static String makeExcerpt(Object body){
+		if(!(body instanceof String)){
+			return null;
+		}
+		//A tag cut off at the end of the body start goes as well
+		String text = ((String) body).replaceAll("<[^>]*(>|$)", " ").replace("&nbsp;", " ").replaceAll("\\s+", " ").trim();
+		if(text.isEmpty()){
+			return null;
+		}
+		if(text.length() <= excerptLength){
+			return text;
+		}
+		int end = text.lastIndexOf(' ', excerptLength);
+		if(end < excerptLength / 2){
+			end = excerptLength;
+		}
+		return text.substring(0, end).trim() + "...";
+	}
+
+	/**
+	 * Reads the summary from a chapter
+	 *
+	 * @param chapter
+	 * @return
+	 */
+	public static ContentSummary fromChapter(DBObject chapter){
+		ContentSummary s = new ContentSummary();
+		s.id = chapter.get("_id").toString();
+		s.title = getString(chapter, "name");
+		s.type = "chapters";
+		s.shortName = getString(chapter, "shortName");
+		s.imageId = getString(chapter, "imageId");
+		s.lcpCopyOfChapter = getString(chapter, "lcpCopyOfChapter");
+		s.lcpLiveUpdates = getString(chapter, "lcpLiveUpdates");
+
+		Object joins = chapter.get("joins");
+		if(joins instanceof List){
+			s.joinScopes = new ArrayList<String>();
+			for(Object o : (List) joins){
+				s.joinScopes.add(getString((DBObject) o, "scope"));
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Reads the summary kept on a join by JoinSummaryMaintainer
+	 * The body, users and costs of content and the join scopes of chapters are not kept there so they are left null
+	 *
+	 * @param id The id of the content or chapter the join points to
+	 * @param summary The "summary" of the join
+	 * @return
+	 */
+	public static ContentSummary fromJoinSummary(String id, DBObject summary){
+		ContentSummary s = new ContentSummary();
+		s.id = id;
+		s.title = getString(summary, "title");
+		s.type = getString(summary, "type");
+		s.publishedDate = summary.get("publishedDate");
+		s.shortName = getString(summary, "shortName");
+		s.imageId = getString(summary, "imageId");
+		s.excerpt = getString(summary, "excerpt");
+		s.lcpCopyOfChapter = getString(summary, "lcpCopyOfChapter");
+		s.lcpLiveUpdates = getString(summary, "lcpLiveUpdates");
+		return s;
+	}
+
+	/**
+	 * The map getContentForAChapter has always returned for this content or chapter
+	 *
+	 * @return
+	 */
+	public Map toMap(){
+		HashMap<String,Object> m = new HashMap<String,Object>();
+		m.put("_id", id);
+		put(m, "title", title);
+		put(m, "type", type);
+		put(m, "publishedDate", publishedDate);
+		put(m, "body", body);
+		put(m, "users", users);
+		put(m, "costs", costs);
+		put(m, "excerpt", excerpt);
+		put(m, "shortName", shortName);
+		put(m, "imageId", imageId);
+		put(m, "lcpCopyOfChapter", lcpCopyOfChapter);
+		put(m, "lcpLiveUpdates", lcpLiveUpdates);
+		if(joinScopes != null){
+			ArrayList<Map> joins = new ArrayList<Map>();
+			for(String scope : joinScopes){
+				HashMap<String,Object> join = new HashMap<String,Object>();
+				put(join, "scope", scope);
+				joins.add(join);
+			}
+			m.put("joins", joins);
+		}
+		return m;
+	}
+
+	public boolean isChapter(){
+		return "chapters".equals(type);
+	}
+
+	//
+	// Getters
+	//
+
+	public String getId(){
+		return this.id;
+	}
+
+	public String getTitle(){
+		return this.title;
+	}
+
+	public String getType(){
+		return this.type;
+	}
+
+	public Object getPublishedDate(){
+		return this.publishedDate;
+	}
+
+	public Object getBody(){
+		return this.body;
+	}
+
+	public Object getUsers(){
+		return this.users;
+	}
+
+	public Object getCosts(){
+		return this.costs;
+	}
+
+	public String getExcerpt(){
+		return this.excerpt;
+	}
+
+	public String getShortName(){
+		return this.shortName;
+	}
+
+	public String getImageId(){
+		return this.imageId;
+	}
+
+	public String getLCPCopyOfChapter(){
+		return this.lcpCopyOfChapter;
+	}
+
+	public String getLCPLiveUpdates(){
+		return this.lcpLiveUpdates;
+	}
+
+	public List<String> getJoinScopes(){
+		return this.joinScopes;
+	}
+
+	private static void put(Map<String,Object> m, String key, Object value){
+		if(value != null){
+			m.put(key, value);
+		}
+	}
+
+	private static String getString(DBObject obj, String field){
+		Object value = obj.get(field);
+		return value == null ? null : value.toString();
+	}
+}
@@ -0,0 +1,128 @@
+package net.javs.dao.chapters;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * Join Entry
+ *
+ * One join on a chapter, read straight from the join sub document,
+ * along with the summary of the content or chapter it points to once that has been looked up.
+ *
+ * toMap gives back the same map getContentForAChapter has always returned for a join.
+ */
+public class JoinEntry {
+
+	private final DBObject join;
+	private ContentSummary summary;
+	private boolean incomplete;
+
+	public JoinEntry(DBObject join){
+		this.join = join;
+		this.summary = null;
+		this.incomplete = false;
+	}
+
+	/**
+	 * The map for this join, the summary with the join information on top
+	 * Without a summary it is only the join information, with "incomplete" set to true if the lookup for it ran out of time
+	 *
+	 * @return
+	 */
+	public Map toMap(){
+		Map m = summary == null ? new HashMap<String,Object>() : summary.toMap();
+		for(String key : join.keySet()){
+			//The denormalized summary is only used to fill in the summary, it isn't part of the join
+			if(key.equals("summary")){
+				continue;
+			}
+			m.put(key, join.get(key));
+		}
+		if(incomplete){
+			m.put("incomplete", true);
+		}
+		return m;
+	}
+
+	public boolean isChapter(){
+		return "chapters".equals(getScope());
+	}
+
+	//
+	// Getters
+	//
+
+	public String getId(){
+		return join.get("_id").toString();
+	}
+
+	public String getScope(){
+		return getString("scope");
+	}
+
+	public String getJoinType(){
+		return getString("joinType");
+	}
+
+	public String getFeatured(){
+		return getString("featured");
+	}
+
+	public String getHide(){
+		return getString("hide");
+	}
+
+	public String getIsLCP(){
+		return getString("isLCP");
+	}
+
+	public String getLcpedFrom(){
+		return getString("lcpedFrom");
+	}
+
+	public String getIsAdminOnly(){
+		return getString("isAdminOnly");
+	}
+
+	/**
+	 * The summary JoinSummaryMaintainer keeps on the join
+	 *
+	 * @return the summary, or null if it hasn't been filled in
+	 */
+	public DBObject getJoinSummary(){
+		Object summary = join.get("summary");
+		return summary instanceof DBObject ? (DBObject) summary : null;
+	}
+
+	public DBObject getJoin(){
+		return this.join;
+	}
+
+	public ContentSummary getSummary(){
+		return this.summary;
+	}
+
+	public void setSummary(ContentSummary summary){
+		this.summary = summary;
+	}
+
+	/**
+	 * True when the lookup for this join ran out of time, so a missing summary doesn't mean it isn't published
+	 *
+	 * @return
+	 */
+	public boolean isIncomplete(){
+		return this.incomplete;
+	}
+
+	public void setIncomplete(boolean incomplete){
+		this.incomplete = incomplete;
+	}
+
+	private String getString(String field){
+		Object value = join.get(field);
+		return value == null ? null : value.toString();
+	}
+}
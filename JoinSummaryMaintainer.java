@@ -0,0 +1,266 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Join Summary Maintainer
+ *
+ * Keeps a small copy of the content or chapter each join points to on the join itself, in "joins.summary",
+ * so a chapter listing can be served from the chapter document without the content_versions and chapters lookups.
+ *
+ * Example join with a summary
+ {
+	"joinType" : "primary",
+	"scope" : "content",
+	"_id" : ObjectId("51cbf94d7896bb431f6baa64"),
+	"summary" : {
+		"title" : "Sample Content",
+		"type" : "article",
+		"publishedDate" : ISODate("2013-06-27T08:32:14Z")
+	}
+ }
+ *
+ * Content summaries have "title", "type", "publishedDate", "imageId" and "excerpt" from the newest published version.
+ * Versions without an excerpt get one made from their body, see ContentSummary.makeExcerpt.
+ * Chapter summaries have "title" (the chapter name), "type" ("chapters"), "shortName", "imageId",
+ * "lcpCopyOfChapter", "lcpLiveUpdates" and "adminOnly".
+ * Content with no published version gets an empty summary, so it is known to have nothing to show.
+ * A join without a summary hasn't been filled in yet and still needs the lookups.
+ *
+ * refreshContent has to be called when a content version is published or unpublished,
+ * and refreshChapter when a chapter's name, shortName, imageId, LCP fields or adminOnly change (Chapter.save does this).
+ *
+ * Summary writes increment the chapter's "version" like every other write to the joins,
+ * so a rewrite of the joins that read them before a refresh retries instead of putting the older summary back.
+ *
+ * @note The summaries are only kept up to date while enabled, run refreshJoins on each chapter after turning it on
+ */
+public class JoinSummaryMaintainer {
+
+	//Chapter fields that end up in a summary
+	private static final String[] chapterFields = {"name", "shortName", "imageId", "lcpCopyOfChapter", "lcpLiveUpdates", "adminOnly"};
+
+	private static volatile boolean enabled = false;
+
+	/**
+	 * Turns keeping the summaries up to date on or off for every DAO
+	 *
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled){
+		JoinSummaryMaintainer.enabled = enabled;
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Whether changing this chapter field means the summaries of its joins have to be refreshed
+	 *
+	 * @param field
+	 * @return
+	 */
+	public static boolean isSummaryField(String field){
+		for(String f : chapterFields){
+			if(f.equals(field)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Refreshes the summary on every join to a piece of content
+	 * Call after a version of it is published or unpublished
+	 *
+	 * @param db
+	 * @param contentId
+	 * @return the number of chapters that were updated
+	 */
+	public static int refreshContent(DB db, ObjectId contentId){
+		ArrayList<ObjectId> ids = new ArrayList<ObjectId>();
+		ids.add(contentId);
+		DBObject summary = findContentSummaries(db, ids).get(contentId);
+		return setSummary(db, contentId, summary == null ? new BasicDBObject() : summary);
+	}
+
+	/**
+	 * Refreshes the summary on every join to a chapter
+	 * Call after the chapter is saved
+	 *
+	 * @param db
+	 * @param chapterId
+	 * @return the number of chapters that were updated
+	 */
+	public static int refreshChapter(DB db, ObjectId chapterId){
+		ArrayList<ObjectId> ids = new ArrayList<ObjectId>();
+		ids.add(chapterId);
+		DBObject summary = findChapterSummaries(db, ids).get(chapterId);
+		if(summary == null){
+			//The chapter is gone, deleteChapter pulls its joins
+			return 0;
+		}
+		return setSummary(db, chapterId, summary);
+	}
+
+	/**
+	 * Fills in the summaries on the joins of one chapter
+	 * Used to fill in existing chapters and after new joins are added
+	 *
+	 * @param db
+	 * @param chapterId
+	 * @param joinIds The joins to fill in, null for all of them
+	 * @return the number of joins that were updated
+	 */
+	public static int refreshJoins(DB db, ObjectId chapterId, Collection<ObjectId> joinIds){
+		DBCollection coll = db.getCollection("chapters");
+		DBObject chapter = coll.findOne(new BasicDBObject("_id", chapterId), new BasicDBObject("joins._id", 1).append("joins.scope", 1));
+		if(chapter == null || !(chapter.get("joins") instanceof List)){
+			return 0;
+		}
+
+		ArrayList<ObjectId> contentIds = new ArrayList<ObjectId>();
+		ArrayList<ObjectId> chapterIds = new ArrayList<ObjectId>();
+		for(Object o : (List) chapter.get("joins")){
+			DBObject join = (DBObject) o;
+			Object id = join.get("_id");
+			if(!(id instanceof ObjectId) || (joinIds != null && !joinIds.contains(id))){
+				continue;
+			}
+			if("chapters".equals(join.get("scope"))){
+				chapterIds.add((ObjectId) id);
+			}else if("content".equals(join.get("scope"))){
+				contentIds.add((ObjectId) id);
+			}
+		}
+		if(contentIds.isEmpty() && chapterIds.isEmpty()){
+			return 0;
+		}
+
+		HashMap<ObjectId, DBObject> summaries = new HashMap<ObjectId, DBObject>();
+		if(!contentIds.isEmpty()){
+			summaries.putAll(findContentSummaries(db, contentIds));
+			for(ObjectId id : contentIds){
+				if(!summaries.containsKey(id)){
+					summaries.put(id, new BasicDBObject());
+				}
+			}
+		}
+		if(!chapterIds.isEmpty()){
+			summaries.putAll(findChapterSummaries(db, chapterIds));
+		}
+		if(summaries.isEmpty()){
+			return 0;
+		}
+
+		//Every join is its own positional update, all sent in one trip
+		BulkWriteOperation bulk = coll.initializeUnorderedBulkOperation();
+		for(ObjectId id : summaries.keySet()){
+			BasicDBObject query = new BasicDBObject("_id", chapterId);
+			query.append("joins._id", id);
+			bulk.find(query).updateOne(ChapterDAO.bumpVersion(new BasicDBObject("$set", new BasicDBObject("joins.$.summary", summaries.get(id)))));
+		}
+		int n = bulk.execute().getMatchedCount();
+		ChapterCache.getInstance().invalidate(chapterId.toString());
+		return n;
+	}
+
+	//Sets the summary on the join to this scope in every chapter it is joined to
+	private static int setSummary(DB db, ObjectId scopeId, DBObject summary){
+		BasicDBObject query = new BasicDBObject("joins._id", scopeId);
+		BasicDBObject update = ChapterDAO.bumpVersion(new BasicDBObject("$set", new BasicDBObject("joins.$.summary", summary)));
+		int n = db.getCollection("chapters").update(query, update, false, true).getN();
+		ChapterCache.getInstance().invalidateJoinedTo(scopeId);
+		return n;
+	}
+
+	//The summary for each piece of content that has a published version, from its newest one
+	private static HashMap<ObjectId, DBObject> findContentSummaries(DB db, List<ObjectId> contentIds){
+		HashMap<ObjectId, DBObject> ret = new HashMap<ObjectId, DBObject>();
+
+		BasicDBObject query = new BasicDBObject("contentId", new BasicDBObject("$in", contentIds));
+		query.append("status", "Published");
+		BasicDBObject fields = new BasicDBObject("contentId", 1);
+		fields.append("title", 1);
+		fields.append("type", 1);
+		fields.append("publishedDate", 1);
+		fields.append("imageId", 1);
+		fields.append("excerpt", 1);
+		//To make an excerpt for the versions that don't have one
+		fields.append("body", 1);
+		fields.append("_id", 0);
+
+		//Newest first so the first version we see for each content is the one we keep
+		DBCursor cur = db.getCollection("content_versions").find(query, fields).sort(new BasicDBObject("publishedDate", -1));
+		try{
+			while(cur.hasNext()){
+				DBObject version = cur.next();
+				ObjectId contentId = (ObjectId) version.get("contentId");
+				if(!ret.containsKey(contentId)){
+					BasicDBObject summary = new BasicDBObject();
+					copy(version, "title", summary, "title");
+					copy(version, "type", summary, "type");
+					copy(version, "publishedDate", summary, "publishedDate");
+					copy(version, "imageId", summary, "imageId");
+					copy(version, "excerpt", summary, "excerpt");
+					if(!summary.containsField("excerpt")){
+						String excerpt = ContentSummary.makeExcerpt(version.get("body"));
+						if(excerpt != null){
+							summary.append("excerpt", excerpt);
+						}
+					}
+					ret.put(contentId, summary);
+				}
+			}
+		}finally{
+			cur.close();
+		}
+		return ret;
+	}
+
+	private static HashMap<ObjectId, DBObject> findChapterSummaries(DB db, List<ObjectId> chapterIds){
+		HashMap<ObjectId, DBObject> ret = new HashMap<ObjectId, DBObject>();
+
+		BasicDBObject fields = new BasicDBObject();
+		for(String field : chapterFields){
+			fields.append(field, 1);
+		}
+
+		DBCursor cur = db.getCollection("chapters").find(new BasicDBObject("_id", new BasicDBObject("$in", chapterIds)), fields);
+		try{
+			while(cur.hasNext()){
+				DBObject chapter = cur.next();
+				BasicDBObject summary = new BasicDBObject();
+				copy(chapter, "name", summary, "title");
+				summary.append("type", "chapters");
+				for(int i = 1; i < chapterFields.length; i++){
+					copy(chapter, chapterFields[i], summary, chapterFields[i]);
+				}
+				ret.put((ObjectId) chapter.get("_id"), summary);
+			}
+		}finally{
+			cur.close();
+		}
+		return ret;
+	}
+
+	private static void copy(DBObject from, String fromField, BasicDBObject to, String toField){
+		Object value = from.get(fromField);
+		if(value != null){
+			to.append(toField, value);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.javs.exceptions.InternalErrorException;
+import net.javs.exceptions.NotFoundException;
+
+/**
+ * Join Write Coalescer
+ *
+ * Write behind queue for the join reorders and join edits of the editing UI, which can send many of them a second.
+ *
+ * Everything sent for a chapter within the window is collapsed into one write:
+ * only the last order counts, and edits to the same join are merged with the newer values winning.
+ * The write is one read-modify-write of the joins through ChapterDAO, so it goes after any other write to the chapter.
+ * Writes for the same chapter go one at a time, in the order they were queued.
+ *
+ * Callers that have to read what they wrote call flush first.
+ *
+ * When a write fails because the chapter was busy or mongo failed, its changes are put back under anything queued since
+ * and tried again next window, up to maxAttempts times. When it fails for good (an id that can't be found, a bad scope,
+ * or too many attempts) the changes are dropped and the error is thrown from the next flush of that chapter.
+ *
+ * @note A chapter has to be sent with the same id each time (its mongo id or its oldId), they are queued separately otherwise
+ */
+public class JoinWriteCoalescer {
+
+	//How many times to try writing the same changes
+	private static final int maxAttempts = 3;
+	//How many failures to keep for chapters that aren't flushed
+	private static final int maxFailures = 1000;
+
+	private final ChapterDAO dao;
+	private final long window;
+	private final ScheduledExecutorService scheduler;
+
+	//What is waiting to be written for each chapter, everything below is guarded by it
+	private final HashMap<String, Pending> pending = new HashMap<String, Pending>();
+	//One write at a time per chapter, only kept while someone is writing or waiting to
+	private final HashMap<String, WriteLock> writeLocks = new HashMap<String, WriteLock>();
+	//The last background write that failed for good for each chapter, thrown from the next flush
+	private final LinkedHashMap<String, RuntimeException> failures = new LinkedHashMap<String, RuntimeException>();
+
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param window How long to collect changes for a chapter before writing them, in milliseconds
+	 */
+	public JoinWriteCoalescer(long window){
+		this(new ChapterDAO(), window);
+	}
+
+	/**
+	 * @param dao The DAO whose settings every write uses
+	 * @param window How long to collect changes for a chapter before writing them, in milliseconds
+	 */
+	public JoinWriteCoalescer(ChapterDAO dao, long window){
+		this.dao = dao;
+		this.window = window;
+		this.scheduler = new ScheduledThreadPoolExecutor(2, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "chapter-join-writes");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queues a new order for the joins of a chapter, replacing any order that is still waiting
+	 *
+	 * @param chapterId
+	 * @param chaptersList ArrayList of Maps that contain : "scope" and "scopeId", like ChapterDAO.changeJoinOrder takes
+	 */
+	public void changeJoinOrder(String chapterId, ArrayList<Map> chaptersList){
+		synchronized(pending){
+			getPending(chapterId).order = new ArrayList<Map>(chaptersList);
+		}
+	}
+
+	/**
+	 * Queues a change to a join that is already on the chapter, like ChapterDAO.addContentToChapter takes
+	 * Joins that aren't on the chapter when it is written are skipped
+	 *
+	 * @param chapterId
+	 * @param edit
+	 */
+	public void updateJoin(String chapterId, ChapterJoin edit){
+		synchronized(pending){
+			LinkedHashMap<String, ChapterJoin> edits = getPending(chapterId).edits;
+			String key = edit.getScope() + ":" + edit.getScopeId();
+			ChapterJoin older = edits.get(key);
+			edits.put(key, older == null ? copy(edit) : merge(older, edit));
+		}
+	}
+
+	/**
+	 * Writes everything that is queued for a chapter now and waits for it,
+	 * along with any write for it that had already started
+	 *
+	 * @param chapterId
+	 * @return true if something was written
+	 * @throws RuntimeException the error from this write, or from a background write for the chapter that failed for good since the last flush
+	 */
+	public boolean flush(String chapterId){
+		boolean written = write(chapterId, false);
+		RuntimeException failure;
+		synchronized(pending){
+			failure = failures.remove(chapterId);
+		}
+		if(failure != null){
+			throw(failure);
+		}
+		return written;
+	}
+
+	/**
+	 * Writes everything that is queued for every chapter and waits for it
+	 * A chapter that fails keeps its error for its next flush
+	 */
+	public void flushAll(){
+		ArrayList<String> chapterIds;
+		synchronized(pending){
+			chapterIds = new ArrayList<String>(pending.keySet());
+		}
+		for(String chapterId : chapterIds){
+			try{
+				flush(chapterId);
+			}catch(RuntimeException e){
+				synchronized(pending){
+					recordFailure(chapterId, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes everything that is queued and stops taking changes
+	 */
+	public void shutdown(){
+		shutdown = true;
+		flushAll();
+		scheduler.shutdown();
+	}
+
+	/**
+	 * @return the number of chapters with changes waiting to be written
+	 */
+	public int getPendingCount(){
+		synchronized(pending){
+			return pending.size();
+		}
+	}
+
+	public long getWindow(){
+		return this.window;
+	}
+
+	//Gets the changes waiting for a chapter, and schedules the write if this is the first one
+	//@Note: has to be called holding pending
+	private Pending getPending(final String chapterId){
+		if(shutdown){
+			throw(new IllegalStateException("The join write coalescer has been shut down."));
+		}
+		Pending p = pending.get(chapterId);
+		if(p == null){
+			p = new Pending();
+			pending.put(chapterId, p);
+			schedule(chapterId, p);
+		}
+		return p;
+	}
+
+	//The window starts with the first change so a steady stream of changes is still written every window
+	//@Note: has to be called holding pending
+	private void schedule(final String chapterId, Pending p){
+		p.future = scheduler.schedule(new Runnable(){
+			public void run(){
+				try{
+					write(chapterId, true);
+				}catch(RuntimeException e){
+					//failed already kept it for the next flush, or put the changes back to try again
+				}
+			}
+		}, window, TimeUnit.MILLISECONDS);
+	}
+
+	//Writes what is waiting for a chapter
+	//The changes are only taken once the chapter's lock is held, so a newer write can never go in before an older one
+	private boolean write(String chapterId, boolean background){
+		WriteLock lock;
+		synchronized(pending){
+			lock = writeLocks.get(chapterId);
+			if(lock == null){
+				lock = new WriteLock();
+				writeLocks.put(chapterId, lock);
+			}
+			lock.users++;
+		}
+		try{
+			synchronized(lock){
+				Pending p;
+				synchronized(pending){
+					p = pending.remove(chapterId);
+					if(p != null){
+						p.future.cancel(false);
+					}
+				}
+				if(p == null){
+					return false;
+				}
+				try{
+					//A DAO holds its connection so every write gets its own
+					return dao.copySettings().applyJoinChanges(chapterId, p.order, p.edits.values());
+				}catch(RuntimeException e){
+					failed(chapterId, p, e, background);
+					throw(e);
+				}
+			}
+		}finally{
+			synchronized(pending){
+				//Nobody else is writing or waiting to write this chapter
+				if(--lock.users == 0){
+					writeLocks.remove(chapterId);
+				}
+			}
+		}
+	}
+
+	//Puts the changes of a failed write back to be tried again, or gives up on them
+	//@Note: has to be called holding the chapter's write lock
+	private void failed(String chapterId, Pending p, RuntimeException e, boolean background){
+		synchronized(pending){
+			//A missing id or bad scope will fail the same way every time
+			boolean permanent = (e instanceof NotFoundException || e instanceof InternalErrorException) && !(e instanceof ChapterConflictException);
+			if(permanent || shutdown || ++p.attempts >= maxAttempts){
+				//Whoever called flush already has the error
+				if(background){
+					recordFailure(chapterId, e);
+				}
+				return;
+			}
+
+			//Anything queued since is newer, so it goes on top
+			Pending newer = pending.get(chapterId);
+			if(newer != null){
+				newer.future.cancel(false);
+				if(newer.order != null){
+					p.order = newer.order;
+				}
+				for(String key : newer.edits.keySet()){
+					ChapterJoin older = p.edits.get(key);
+					p.edits.put(key, older == null ? newer.edits.get(key) : merge(older, newer.edits.get(key)));
+				}
+			}
+			pending.put(chapterId, p);
+			schedule(chapterId, p);
+		}
+	}
+
+	//Keeps the error to throw from the next flush of the chapter
+	//@Note: has to be called holding pending
+	private void recordFailure(String chapterId, RuntimeException e){
+		failures.remove(chapterId);
+		failures.put(chapterId, e);
+		//Forget the oldest ones
+		Iterator<String> it = failures.keySet().iterator();
+		while(failures.size() > maxFailures){
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static ChapterJoin copy(ChapterJoin join){
+		return new ChapterJoin(join.getScopeId(), join.getScope(), join.getJoinType(), join.getFeatured(), join.getHide(), join.getIsLCP(), join.getLcpedFrom());
+	}
+
+	//The newer edit wins for every field it sets, lcpedFrom is always set since an empty one removes it
+	private static ChapterJoin merge(ChapterJoin older, ChapterJoin newer){
+		ChapterJoin ret = copy(older);
+		if(!newer.getJoinType().equals("")){
+			ret.setJoinType(newer.getJoinType());
+		}
+		if(!newer.getFeatured().equals("")){
+			ret.setFeatured(newer.getFeatured());
+		}
+		if(!newer.getHide().equals("")){
+			ret.setHide(newer.getHide());
+		}
+		if(!newer.getIsLCP().equals("")){
+			ret.setIsLCP(newer.getIsLCP());
+		}
+		ret.setLcpedFrom(newer.getLcpedFrom());
+		return ret;
+	}
+
+	private static class Pending {
+		ArrayList<Map> order;
+		LinkedHashMap<String, ChapterJoin> edits = new LinkedHashMap<String, ChapterJoin>();
+		ScheduledFuture<?> future;
+		int attempts = 0;
+	}
+
+	private static class WriteLock {
+		int users = 0;
+	}
+}
@@ -0,0 +1,283 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Legacy Id Resolver
+ *
+ * Turns the legacy ids from the old SQL database ("oldId") into mongo ids for chapters and content.
+ *
+ * A legacy id never changes once it is assigned so every id we find is kept in a size bounded LRU cache.
+ * Ids that are not found are also cached, but only for a short time, since the chapter or content
+ * may still be imported later with that oldId.
+ * A chapter or content that is deleted has to be forgotten, so its oldId can be imported again.
+ *
+ * There is one shared resolver for every DAO, use getInstance()
+ */
+public class LegacyIdResolver {
+
+	private static final LegacyIdResolver instance = new LegacyIdResolver(50000, 60000);
+
+	private final int maxSize;
+	private long missTimeout;
+
+	//Keyed on scope and oldId, kept in access order so the eldest entry is the least recently used
+	private final LinkedHashMap<String, Entry> cache;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong notFound = new AtomicLong();
+
+	/**
+	 * @param maxSize The most ids to keep in the cache
+	 * @param missTimeout How long to remember that an id was not found, in milliseconds
+	 */
+	public LegacyIdResolver(final int maxSize, long missTimeout){
+		this.maxSize = maxSize;
+		this.missTimeout = missTimeout;
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest){
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public static LegacyIdResolver getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Gets the mongo id for an id
+	 * If the id is already a mongo id it is just returned
+	 *
+	 * @param db
+	 * @param scope Must be either "content" or "chapters"
+	 * @param id
+	 * @return the mongo id, or null if it could not be found
+	 */
+	public ObjectId resolve(DB db, String scope, String id){
+		if(ObjectId.isValid(id)){
+			return new ObjectId(id);
+		}
+
+		String collName = getCollectionName(scope);
+		if(collName == null){
+			return null;
+		}
+
+		String key = collName + ":" + id;
+		Entry entry = getEntry(key);
+		if(entry != null){
+			hits.incrementAndGet();
+			return entry.id;
+		}
+		misses.incrementAndGet();
+
+		//Get the new id from the old id
+		BasicDBObject query = new BasicDBObject("oldId", id);
+		DBObject found = db.getCollection(collName).findOne(query, new BasicDBObject("_id", 1));
+		ObjectId ret = null;
+		if(found != null){
+			ret = (ObjectId) found.get("_id");
+		}else{
+			notFound.incrementAndGet();
+		}
+		putEntry(key, ret);
+		return ret;
+	}
+
+	/**
+	 * Gets the mongo ids for a list of ids with at most one query
+	 * Ids that are already mongo ids are just passed through
+	 *
+	 * @param db
+	 * @param scope Must be either "content" or "chapters"
+	 * @param ids
+	 * @return map of the ids passed in to their mongo id, ids that could not be found are left out
+	 */
+	public Map<String, ObjectId> resolveAll(DB db, String scope, Collection<String> ids){
+		HashMap<String, ObjectId> ret = new HashMap<String, ObjectId>();
+		LinkedHashSet<String> toFind = new LinkedHashSet<String>();
+
+		String collName = getCollectionName(scope);
+		for(String id : ids){
+			if(ObjectId.isValid(id)){
+				ret.put(id, new ObjectId(id));
+			}else if(collName != null && !ret.containsKey(id) && !toFind.contains(id)){
+				Entry entry = getEntry(collName + ":" + id);
+				if(entry != null){
+					hits.incrementAndGet();
+					if(entry.id != null){
+						ret.put(id, entry.id);
+					}
+				}else{
+					misses.incrementAndGet();
+					toFind.add(id);
+				}
+			}
+		}
+
+		if(!toFind.isEmpty()){
+			BasicDBObject query = new BasicDBObject("oldId", new BasicDBObject("$in", new ArrayList<String>(toFind)));
+			BasicDBObject fields = new BasicDBObject("_id", 1);
+			fields.append("oldId", 1);
+
+			DBCollection coll = db.getCollection(collName);
+			DBCursor cur = coll.find(query, fields);
+			try{
+				while(cur.hasNext()){
+					DBObject obj = cur.next();
+					ret.put(obj.get("oldId").toString(), (ObjectId) obj.get("_id"));
+				}
+			}finally{
+				cur.close();
+			}
+
+			for(String id : toFind){
+				ObjectId found = ret.get(id);
+				if(found == null){
+					notFound.incrementAndGet();
+				}
+				putEntry(collName + ":" + id, found);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Forgets an id, used when something is saved with an oldId
+	 *
+	 * @param scope
+	 * @param id
+	 */
+	public void invalidate(String scope, String id){
+		String collName = getCollectionName(scope);
+		if(collName != null){
+			synchronized(cache){
+				cache.remove(collName + ":" + id);
+			}
+		}
+	}
+
+	/**
+	 * Forgets every id that resolves to this mongo id, used when a chapter or content is deleted
+	 *
+	 * @note Looks through the whole cache, so it is only meant for deletes
+	 * @param scope
+	 * @param id
+	 */
+	public void forget(String scope, ObjectId id){
+		String collName = getCollectionName(scope);
+		if(collName == null){
+			return;
+		}
+		String prefix = collName + ":";
+		synchronized(cache){
+			Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+			while(it.hasNext()){
+				Map.Entry<String, Entry> e = it.next();
+				if(id.equals(e.getValue().id) && e.getKey().startsWith(prefix)){
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void clear(){
+		synchronized(cache){
+			cache.clear();
+		}
+	}
+
+	//
+	// Metrics
+	//
+
+	//Number of ids that were answered from the cache
+	public long getHits(){
+		return hits.get();
+	}
+
+	//Number of ids that had to go to mongo
+	public long getMisses(){
+		return misses.get();
+	}
+
+	//Number of ids that went to mongo and were not found
+	public long getNotFound(){
+		return notFound.get();
+	}
+
+	public int getSize(){
+		synchronized(cache){
+			return cache.size();
+		}
+	}
+
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	public long getMissTimeout(){
+		return this.missTimeout;
+	}
+
+	public void setMissTimeout(long missTimeout){
+		this.missTimeout = missTimeout;
+	}
+
+	//Returns the cache entry for this key, or null if there is none or it was a miss that has expired
+	private Entry getEntry(String key){
+		synchronized(cache){
+			Entry entry = cache.get(key);
+			if(entry != null && entry.expires > 0 && entry.expires < System.currentTimeMillis()){
+				cache.remove(key);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	private void putEntry(String key, ObjectId id){
+		Entry entry = new Entry();
+		entry.id = id;
+		//Found ids never change so only misses expire
+		if(id == null){
+			entry.expires = System.currentTimeMillis() + missTimeout;
+		}
+		synchronized(cache){
+			cache.put(key, entry);
+		}
+	}
+
+	//The collection that holds the oldIds for this scope
+	private static String getCollectionName(String scope){
+		if("chapters".equals(scope)){
+			return "chapters";
+		}else if("content".equals(scope)){
+			return "content";
+		}
+		return null;
+	}
+
+	private static class Entry {
+		ObjectId id;
+		long expires;
+	}
+}
@@ -0,0 +1,157 @@
+package net.javs.dao.chapters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.javs.exceptions.InternalErrorException;
+
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Mongo Connection Manager
+ *
+ * One shared, pooled MongoClient for every DAO, instead of each DAO connecting in initMongo and disconnecting in deInitMongo.
+ *
+ * The connections are limited by the driver's own pool: at most the pool size ("maxPoolSize", connectionsPerHost) are open,
+ * and a query that can't get one waits up to the max wait time ("waitQueueTimeoutMS") and then fails.
+ * The manager only hands out the database and counts the DAO operations that are using it.
+ * To limit how many mongo calls run at once, limit the threads that make them (see AsyncChapterDAO).
+ *
+ * Call configure once at startup and shutdown when the application stops.
+ * Until configure is called PooledDAO keeps using the old initMongo and deInitMongo.
+ * After shutdown every operation fails instead of going back to them.
+ *
+ * There is one shared manager, use getInstance()
+ */
+public class MongoConnectionManager {
+
+	private static final MongoConnectionManager instance = new MongoConnectionManager();
+
+	private MongoClient client = null;
+	private String dbName = null;
+	private int poolSize = 0;
+	private long maxWaitTime = 0;
+	private boolean configured = false;
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger peakInUse = new AtomicInteger();
+
+	public static MongoConnectionManager getInstance(){
+		return instance;
+	}
+
+	/**
+	 * Connects the shared client
+	 *
+	 * @param uri The mongo uri, with the database and any pool options ("maxPoolSize", "waitQueueTimeoutMS")
+	 */
+	public synchronized void configure(String uri){
+		configure(new MongoClientURI(uri));
+	}
+
+	/**
+	 * Connects the shared client
+	 *
+	 * @param uri The mongo uri, with the database
+	 * @param poolSize The most connections to the server
+	 * @param maxWaitTime How long a query waits for a connection, in milliseconds
+	 */
+	public synchronized void configure(String uri, int poolSize, int maxWaitTime){
+		MongoClientOptions.Builder options = MongoClientOptions.builder();
+		options.connectionsPerHost(poolSize);
+		options.maxWaitTime(maxWaitTime);
+		configure(new MongoClientURI(uri, options));
+	}
+
+	private void configure(MongoClientURI uri){
+		if(configured){
+			throw(new InternalErrorException("The mongo connection manager is already configured."));
+		}
+		if(uri.getDatabase() == null){
+			throw(new InternalErrorException("The mongo uri has to have a database."));
+		}
+		MongoClientOptions options = uri.getOptions();
+		this.client = new MongoClient(uri);
+		this.dbName = uri.getDatabase();
+		this.poolSize = options.getConnectionsPerHost();
+		this.maxWaitTime = options.getMaxWaitTime();
+		this.configured = true;
+	}
+
+	/**
+	 * @return true once configure has been called, even after shutdown
+	 */
+	public synchronized boolean isConfigured(){
+		return configured;
+	}
+
+	/**
+	 * Closes the shared client, every operation after this fails
+	 */
+	public synchronized void shutdown(){
+		if(client != null){
+			client.close();
+			client = null;
+		}
+	}
+
+	/**
+	 * Gets the database for an operation, call end when the operation is done
+	 *
+	 * @return
+	 * @throws InternalErrorException if the manager isn't configured or has been shut down
+	 */
+	public DB begin(){
+		MongoClient c;
+		synchronized(this){
+			c = client;
+		}
+		if(c == null){
+			throw(new InternalErrorException(configured ? "The mongo connection manager has been shut down." : "The mongo connection manager is not configured."));
+		}
+		DB db = c.getDB(dbName);
+		operations.incrementAndGet();
+		int now = inUse.incrementAndGet();
+		for(int peak = peakInUse.get(); now > peak && !peakInUse.compareAndSet(peak, now); peak = peakInUse.get()){
+
+		}
+		return db;
+	}
+
+	/**
+	 * Ends an operation started with begin
+	 */
+	public void end(){
+		inUse.decrementAndGet();
+	}
+
+	//
+	// Metrics
+	//
+
+	//Number of operations started
+	public long getOperations(){
+		return operations.get();
+	}
+
+	//Number of operations going on right now, a ChapterCursor counts until it is closed
+	public int getInUse(){
+		return inUse.get();
+	}
+
+	public int getPeakInUse(){
+		return peakInUse.get();
+	}
+
+	public int getPoolSize(){
+		return this.poolSize;
+	}
+
+	public long getMaxWaitTime(){
+		return this.maxWaitTime;
+	}
+}
@@ -0,0 +1,53 @@
+package net.javs.dao.chapters;
+
+import net.javs.dao.DAO;
+
+/**
+ * Pooled DAO
+ *
+ * A DAO whose initMongo and deInitMongo use the database of the shared MongoConnectionManager,
+ * instead of connecting and disconnecting each time.
+ * Until the manager is configured they fall through to the DAO ones, so nothing changes for a DAO that extends this.
+ *
+ * initMongo and deInitMongo can be nested: only the outer deInitMongo lets go of the database,
+ * so a method that is already using db can call another method that does its own initMongo and deInitMongo.
+ *
+ * @note Like DAO, one instance should only be used by one thread at a time
+ */
+public abstract class PooledDAO extends DAO {
+
+	//How many initMongo calls haven't had their deInitMongo yet
+	private int depth = 0;
+	private boolean managed = false;
+
+	@Override
+	protected void initMongo(){
+		if(depth > 0){
+			depth++;
+			return;
+		}
+		MongoConnectionManager manager = MongoConnectionManager.getInstance();
+		if(manager.isConfigured()){
+			db = manager.begin();
+			managed = true;
+		}else{
+			super.initMongo();
+		}
+		//Only counted once it worked, so a failed initMongo isn't ended
+		depth = 1;
+	}
+
+	@Override
+	protected void deInitMongo(){
+		if(depth == 0 || --depth > 0){
+			return;
+		}
+		if(managed){
+			MongoConnectionManager.getInstance().end();
+			managed = false;
+			db = null;
+		}else{
+			super.deInitMongo();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package net.javs.dao.chapters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.javs.exceptions.NotFoundException;
+
+/**
+ * Thrown when some of the legacy ids sent to us could not be found
+ *
+ * getMissingIds has the ids that were not found, grouped by scope ("chapters" or "content")
+ */
+public class UnresolvedIdsException extends NotFoundException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, List<String>> missingIds;
+
+	public UnresolvedIdsException(Map<String, List<String>> missingIds){
+		super(getMessage(missingIds));
+		this.missingIds = missingIds;
+	}
+
+	public Map<String, List<String>> getMissingIds(){
+		return this.missingIds;
+	}
+
+	private static String getMessage(Map<String, List<String>> missingIds){
+		ArrayList<String> parts = new ArrayList<String>();
+		for(String scope : missingIds.keySet()){
+			parts.add(scope + " " + missingIds.get(scope));
+		}
+		return "These ids were not found: " + parts;
+	}
+}